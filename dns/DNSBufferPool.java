@@ -0,0 +1,48 @@
+package dns;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/*
+ * Free list of direct buffers for the NIO server loop. Each loop owns its own
+ * pool, so no locking is needed. If the pool runs dry a new buffer is allocated,
+ * and surplus buffers beyond the pool size are left to the garbage collector.
+ */
+class DNSBufferPool {
+
+    private ArrayDeque<ByteBuffer> free;
+    private int buffer_size;
+    private int max_pooled;
+
+    DNSBufferPool(int max_pooled, int buffer_size) {
+        this.free = new ArrayDeque<ByteBuffer>(max_pooled);
+        this.buffer_size = buffer_size;
+        this.max_pooled = max_pooled;
+        for(int i = 0; i < max_pooled; i++) {
+            free.push(ByteBuffer.allocateDirect(buffer_size));
+        }
+    }
+
+    ByteBuffer acquire() {
+        return acquire(buffer_size);
+    }
+
+    /* a packet bigger than the pooled size gets a buffer of its own, which is never pooled */
+    ByteBuffer acquire(int size) {
+        if(size > buffer_size) {
+            return ByteBuffer.allocate(size);
+        }
+        var buf = free.poll();
+        if(buf == null) {
+            buf = ByteBuffer.allocateDirect(buffer_size);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    void release(ByteBuffer buf) {
+        if(free.size() < max_pooled && buf.capacity() == buffer_size) {
+            free.push(buf);
+        }
+    }
+}
@@ -1,54 +1,344 @@
 package dns;
 
-import java.time.Duration;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 
+/*
+ * The record cache, split into shards by owner name so threads looking up
+ * different names don't wait on one lock. Each shard (see DNSCacheShard) has its
+ * own LRU order, TinyLFU sketch, expiry queue and an even share of the caps.
+ * Every key for one name lands in the same shard, so a name's negative entry
+ * sits next to its RRsets. Safe to use from any number of threads.
+ */
 public class DNSCache {
-    /* TODO: fill me in! */
-    private ArrayList<DNSRecord> recordCache;
+
+    final public static int DEFAULT_SHARDS = 16;
+
+    /* longest a negative answer is kept, whatever its SOA says (RFC 2308 section 5) */
+    private static final int MAX_NEGATIVE_TTL = 10800;
+
+    /* a popular RRset is refreshed once this much of its TTL has gone by */
+    static final int PREFETCH_PERCENT = 90;
+
+    private DNSCacheShard[] shards;
+    private int shardMask;
+
+    /* where the next checkCache(limit) starts, so every shard gets its turn */
+    private int nextExpiryShard;
+
+    /* token bucket holding at most prefetchRate prefetches a second, 0 disables prefetching; guarded by this */
+    private int prefetchRate;
+    private double prefetchTokens;
+    private long prefetchRefilledAt;
 
     public DNSCache(){
-      recordCache = new ArrayList<DNSRecord>();
+        this(0, 0, 0);
+    }
+
+    public DNSCache(long maxEntries, long maxBytes, int maxStaleSeconds) {
+        this(maxEntries, maxBytes, maxStaleSeconds, DEFAULT_SHARDS);
+    }
+
+    /* numShards is rounded down to a power of two, and to no more shards than maxEntries allows */
+    public DNSCache(long maxEntries, long maxBytes, int maxStaleSeconds, int numShards) {
+        numShards = Integer.highestOneBit(Math.max(numShards, 1));
+        if(maxEntries > 0 && maxEntries < numShards) {
+            numShards = (int)Long.highestOneBit(maxEntries);
+        }
+
+        /* a byte budget smaller than the shard count must not round down to 0, which would mean unbounded */
+        long shardBytes = maxBytes > 0 ? Math.max(maxBytes / numShards, 1) : 0;
+
+        shards = new DNSCacheShard[numShards];
+        shardMask = numShards - 1;
+        for(int i = 0; i < numShards; i++) {
+            shards[i] = new DNSCacheShard(maxEntries / numShards, shardBytes, maxStaleSeconds * 1000L);
+        }
+    }
+
+    private DNSCacheShard shardOf(DNSKey key) {
+        return shards[((key.getNameHash() * 0x9e3779b9) >>> 16) & shardMask];
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public void setPacketCache(DNSPacketCache packetCache) {
+        for(var shard : shards) {
+            shard.setPacketCache(packetCache);
+        }
+    }
 
+    public synchronized void setPrefetchRate(int prefetchRate) {
+        this.prefetchRate = prefetchRate;
+        this.prefetchTokens = prefetchRate;
+        this.prefetchRefilledAt = Instant.now().toEpochMilli();
+    }
+
+    /* one prefetch's worth of the rate limit, if there is any left; called with a shard locked */
+    synchronized boolean takePrefetchToken(long now) {
+        prefetchTokens = Math.min(prefetchRate, prefetchTokens + (now - prefetchRefilledAt) * prefetchRate / 1000.0);
+        prefetchRefilledAt = now;
+        if(prefetchTokens < 1) {
+            return false;
+        }
+        prefetchTokens--;
+        return true;
     }
 
     public void addEntry(DNSRecord record){
-      recordCache.add(record);
+        shardOf(record.getKey()).addEntry(record);
     }
 
     public void addEntries(ArrayList<DNSRecord> message) {
-      recordCache.addAll(message);
+        /* an answer section carries complete RRsets, so each one replaces what we had cached */
+        var rrsets = new LinkedHashMap<DNSKey,ArrayList<DNSRecord>>();
+        for(var record : message) {
+            rrsets.computeIfAbsent(record.getKey(), k -> new ArrayList<DNSRecord>()).add(record);
+        }
+        for(var rrset : rrsets.entrySet()) {
+            shardOf(rrset.getKey()).addRRset(rrset.getKey(), rrset.getValue());
+        }
+    }
+
+    /*
+     * Remember that key has no records of its type (NODATA, rcode 0) or that its
+     * name doesn't exist at all (NXDOMAIN, rcode 3), for as long as the zone's SOA
+     * allows: the lower of its TTL and its MINIMUM field. key may be a probe.
+     */
+    public void addNegative(DNSKey key, int rcode, DNSRecord soa) {
+        int ttl = Math.min(Math.min(soa.getTTL(), soa.getSOAMinimum()), MAX_NEGATIVE_TTL);
+        if(ttl <= 0) {
+            return;
+        }
+        var negative = negativeKey(key, rcode);
+        shardOf(negative).addNegative(negative, soa.withTTL(ttl));
+    }
+
+    /* NODATA is cached under the question itself, NXDOMAIN under the name with type 0 so it covers every type */
+    static DNSKey negativeKey(DNSKey key, int rcode) {
+        return key.withType(rcode == 3 ? 0 : key.getType(), key.getRClass());
+    }
+
+    /*
+     * Cache what a forwarded reply says doesn't exist: NXDOMAIN, or NOERROR with no
+     * answer of the type asked for. It applies to the name at the end of any CNAME
+     * chain in the answer, and needs an SOA in the authority section for its TTL.
+     */
+    public void addNegativeReply(DNSMessage reply) {
+        var key = reply.getQuestionKey();
+        int rcode = reply.getRcode();
+        if(key == null || (rcode != 0 && rcode != 3)) {
+            return;
+        }
+
+        for(int i = 0; i <= reply.getAnswers().size(); i++) {
+            DNSRecord cname = null;
+            for(var record : reply.getAnswers()) {
+                if(record.getKey().equals(key)) {
+                    return;
+                }
+                if(record.getTypeNum() == 5 && record.getKey().nameKey().equals(key.nameKey())) {
+                    cname = record;
+                }
+            }
+            if(cname == null || key.getType() == 5) {
+                break;
+            }
+            key = DNSKey.of(cname.getData(), key.getType(), key.getRClass());
+        }
+
+        for(var record : reply.getAuthorities()) {
+            if(record.getTypeNum() == 6) {
+                addNegative(key, rcode, record);
+                return;
+            }
+        }
     }
 
     public void checkCache(){
-      Instant currentTime = Instant.now();
-      
-      for(DNSRecord comparisonRecord : recordCache) {
+        for(var shard : shards) {
+            shard.checkCache(Integer.MAX_VALUE);
+        }
+    }
 
-        Instant thenTimestamp = comparisonRecord.getTimeStamp();
+    /* expire at most limit due entries, spread over the shards, so the cost per call stays flat however large the cache is */
+    public void checkCache(int limit){
+        int perShard = Math.max(limit / shards.length, 1);
+        int start;
+        synchronized(this) {
+            start = nextExpiryShard;
+            nextExpiryShard = (nextExpiryShard + 1) & shardMask;
+        }
+        for(int i = 0; i < shards.length && limit > 0; i++) {
+            shards[(start + i) & shardMask].checkCache(Math.min(perShard, limit));
+            limit -= perShard;
+        }
+    }
 
-        Duration diff = Duration.between(thenTimestamp, currentTime);
+    /* key may be a probe; it is only used for the lookup and never stored */
+    public ArrayList<DNSRecord> returnRecords(DNSKey key) {
+        return shardOf(key).returnRecords(key);
+    }
+
+    /*
+     * True if the RRset returnRecords() just found for key has been asked for
+     * often enough and is close enough to expiring that it should be refreshed
+     * now, so the client after it expires doesn't wait on upstream. Each entry
+     * is prefetched at most once; the caller sends the refresh. key may be a probe.
+     */
+    public boolean shouldPrefetch(DNSKey key) {
+        if(prefetchRate == 0) {
+            return false;
+        }
+        return shardOf(key).shouldPrefetch(key, this);
+    }
+
+    /*
+     * A cached negative answer for key: 3 if its name doesn't exist, 0 if it has no
+     * records of key's type, or -1 if we don't know. The SOA that said so is added
+     * to authority, for the reply.
+     */
+    public int returnNegative(DNSKey key, ArrayList<DNSRecord> authority) {
+        return shardOf(key).returnNegative(key, authority);
+    }
+
+    /* fresh records for key without counting a hit or a miss, for the resolver's own lookups of delegations and glue */
+    ArrayList<DNSRecord> peekRecords(DNSKey key) {
+        return shardOf(key).peekRecords(key);
+    }
+
+    /* records that have expired but are still inside the serve-stale window (RFC 8767) */
+    public ArrayList<DNSRecord> returnStaleRecords(DNSKey key) {
+        return shardOf(key).returnStaleRecords(key);
+    }
+
+    /*
+     * Write every cached RRset to out, least recently used first within each
+     * shard, holding one shard's lock at a time. Negative entries are left out:
+     * they are short-lived and cheap to learn again. Returns the number written.
+     */
+    int writeRRsets(DataOutputStream out) throws IOException {
+        int written = 0;
+        for(var shard : shards) {
+            written += shard.writeRRsets(out);
+        }
+        return written;
+    }
+
+    /* put back an RRset read from a snapshot, dropping records that expired while we were down; false if nothing was kept */
+    boolean restoreRRset(ArrayList<DNSRecord> records) {
+        return shardOf(records.get(0).getKey()).restoreRRset(records);
+    }
 
-        if(diff.toSeconds() > comparisonRecord.getTTL()) {
-          recordCache.remove(comparisonRecord);
+    /* totals are summed shard by shard, so under load they are only approximately a single moment's */
+    public long size() {
+        long total = 0;
+        for(var shard : shards) {
+            total += shard.getRecordCount();
         }
-      }
-      
+        return total;
     }
 
-    public ArrayList<DNSRecord> returnRecords(String name_str, String type_str, String class_str) {
-      ArrayList<DNSRecord> returnList = new ArrayList<DNSRecord>();
+    public long getEstimatedBytes() {
+        long total = 0;
+        for(var shard : shards) {
+            total += shard.getEstimatedBytes();
+        }
+        return total;
+    }
 
-      for(DNSRecord comparisonRecord : recordCache){
+    public long getHits() {
+        long total = 0;
+        for(var shard : shards) {
+            total += shard.getHits();
+        }
+        return total;
+    }
 
-        if(comparisonRecord.getName().equals(name_str) && comparisonRecord.getTypeStr().equals(type_str) &&comparisonRecord.getClassStr().equals(class_str)){
-          returnList.add(comparisonRecord);
+    public long getMisses() {
+        long total = 0;
+        for(var shard : shards) {
+            total += shard.getMisses();
         }
-      }
+        return total;
+    }
 
-      return returnList;
+    public long getEvictions() {
+        long total = 0;
+        for(var shard : shards) {
+            total += shard.getEvictions();
+        }
+        return total;
     }
 
+    public long getRejections() {
+        long total = 0;
+        for(var shard : shards) {
+            total += shard.getRejections();
+        }
+        return total;
+    }
+
+    public long getStaleHits() {
+        long total = 0;
+        for(var shard : shards) {
+            total += shard.getStaleHits();
+        }
+        return total;
+    }
+
+    public long getNegativeHits() {
+        long total = 0;
+        for(var shard : shards) {
+            total += shard.getNegativeHits();
+        }
+        return total;
+    }
+
+    public long getPrefetches() {
+        long total = 0;
+        for(var shard : shards) {
+            total += shard.getPrefetches();
+        }
+        return total;
+    }
+
+    /* prefetched RRsets that were hit before being replaced or expiring */
+    public long getUsefulPrefetches() {
+        long total = 0;
+        for(var shard : shards) {
+            total += shard.getUsefulPrefetches();
+        }
+        return total;
+    }
+
+    /* prefetched RRsets that went unused */
+    public long getWastedPrefetches() {
+        long total = 0;
+        for(var shard : shards) {
+            total += shard.getWastedPrefetches();
+        }
+        return total;
+    }
+
+    /* prefetches skipped because the rate limit was used up */
+    public long getLimitedPrefetches() {
+        long total = 0;
+        for(var shard : shards) {
+            total += shard.getLimitedPrefetches();
+        }
+        return total;
+    }
+
+    public String toString() {
+        return String.format("Cache: %d records, ~%d bytes, %d hits, %d negative hits, %d misses, %d stale hits, %d evictions, %d rejected, " +
+            "%d prefetches (%d useful, %d wasted, %d rate limited), %d shards",
+            size(), getEstimatedBytes(), getHits(), getNegativeHits(), getMisses(), getStaleHits(), getEvictions(), getRejections(),
+            getPrefetches(), getUsefulPrefetches(), getWastedPrefetches(), getLimitedPrefetches(), shards.length);
+    }
 }
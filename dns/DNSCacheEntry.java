@@ -0,0 +1,109 @@
+package dns;
+
+import java.time.Instant;
+import java.util.ArrayList;
+
+/*
+ * One cached RRset, i.e. every record sharing a (name, type, class) key, or a
+ * negative entry (RFC 2308) holding the SOA that said the key has no records.
+ */
+class DNSCacheEntry {
+
+    /* rough per-entry cost of this object, the map node and its table slot, the expiry heap slot and an empty array */
+    private static final int ENTRY_OVERHEAD = 136;
+
+    private DNSKey key;
+    /* an exact-size array rather than the list it came in, which carries spare capacity */
+    private DNSRecord[] records;
+    private long expiresAt;
+    private long staleMillis;
+    private long estimatedSize;
+    private boolean negative;
+    private long storedAt;
+
+    /* hits while this entry was current, for deciding whether it is worth a prefetch */
+    private int hits;
+    /* a prefetch of this entry is on its way */
+    private boolean prefetching;
+    /* this entry is the result of a prefetch, so its hits tell whether that paid off */
+    private boolean prefetched;
+
+    /* position in DNSExpiryQueue, -1 when not queued */
+    int heapIndex;
+
+    /* negative entries are never served stale, so they go as soon as they expire */
+    DNSCacheEntry(DNSKey key, ArrayList<DNSRecord> records, long staleMillis, boolean negative) {
+        this.key = key;
+        this.staleMillis = negative ? 0 : staleMillis;
+        this.negative = negative;
+        this.heapIndex = -1;
+        this.storedAt = Instant.now().toEpochMilli();
+        setRecords(records);
+    }
+
+    void setRecords(ArrayList<DNSRecord> records) {
+        this.records = records.toArray(new DNSRecord[records.size()]);
+        this.expiresAt = Long.MAX_VALUE;
+        this.estimatedSize = ENTRY_OVERHEAD;
+        for(var record : records) {
+            expiresAt = Math.min(expiresAt, record.getExpiresAt());
+            estimatedSize += 4 + record.getEstimatedSize();
+        }
+    }
+
+    DNSKey getKey() {
+        return key;
+    }
+
+    DNSRecord[] getRecords() {
+        return records;
+    }
+
+    boolean isNegative() {
+        return negative;
+    }
+
+    long getExpiresAt() {
+        return expiresAt;
+    }
+
+    long getStoredAt() {
+        return storedAt;
+    }
+
+    int getHits() {
+        return hits;
+    }
+
+    void hit() {
+        hits++;
+    }
+
+    boolean isPrefetching() {
+        return prefetching;
+    }
+
+    void setPrefetching() {
+        prefetching = true;
+    }
+
+    boolean isPrefetched() {
+        return prefetched;
+    }
+
+    void setPrefetched() {
+        prefetched = true;
+    }
+
+    /* when the entry may be dropped: its expiration plus how long we are willing to serve it stale */
+    long getRemoveAt() {
+        if(expiresAt > Long.MAX_VALUE - staleMillis) {
+            return Long.MAX_VALUE;
+        }
+        return expiresAt + staleMillis;
+    }
+
+    long getEstimatedSize() {
+        return estimatedSize;
+    }
+}
@@ -0,0 +1,411 @@
+package dns;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+
+/*
+ * One partition of DNSCache: a complete cache of its own with its share of the
+ * caps. All methods are synchronized on the shard, since even a lookup updates
+ * LRU order, the sketch and the counters.
+ */
+class DNSCacheShard {
+
+    /* sketch width used when the cache has no entry cap to size it from */
+    private static final int DEFAULT_SKETCH_SIZE = 4096;
+
+    /* hits an RRset needs before refreshing it ahead of time is worth an upstream query */
+    private static final int PREFETCH_MIN_HITS = 2;
+
+    /* RRsets keyed by (name, type, class), kept in access order so the head is the LRU victim */
+    private LinkedHashMap<DNSKey,DNSCacheEntry> recordCache;
+
+    /* entries ordered by expiration time, so expiry only touches entries that are due */
+    private DNSExpiryQueue expiryQueue;
+
+    /* TinyLFU admission: a new RRset only displaces the LRU victim if it is asked for more often */
+    private DNSFrequencySketch sketch;
+
+    /* told about every RRset that changes or goes away, may be null */
+    private DNSPacketCache packetCache;
+
+    /* 0 means unbounded */
+    private long maxEntries;
+    private long maxBytes;
+
+    /* how long past expiration a record is kept for serve-stale, 0 disables it */
+    private long staleMillis;
+
+    private long numRecords;
+    private long numBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+    private long staleHits;
+    private long negativeHits;
+    private long prefetches;
+    private long usefulPrefetches;
+    private long wastedPrefetches;
+    private long limitedPrefetches;
+
+    DNSCacheShard(long maxEntries, long maxBytes, long staleMillis) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.staleMillis = staleMillis;
+        recordCache = new LinkedHashMap<DNSKey,DNSCacheEntry>(16, 0.75f, true);
+        expiryQueue = new DNSExpiryQueue();
+
+        int sketchSize = DEFAULT_SKETCH_SIZE;
+        if(maxEntries > 0) {
+            sketchSize = (int)Math.min(maxEntries, 1 << 24);
+        }
+        sketch = new DNSFrequencySketch(sketchSize);
+    }
+
+    private boolean overBudget(long extraRecords, long extraBytes) {
+        if(maxEntries > 0 && numRecords + extraRecords > maxEntries) {
+            return true;
+        }
+        if(maxBytes > 0 && numBytes + extraBytes > maxBytes) {
+            return true;
+        }
+        return false;
+    }
+
+    synchronized void setPacketCache(DNSPacketCache packetCache) {
+        this.packetCache = packetCache;
+    }
+
+    private void invalidate(DNSKey key) {
+        if(packetCache != null) {
+            packetCache.invalidate(key);
+        }
+    }
+
+    private void removeEntry(DNSCacheEntry entry) {
+        if(entry.isPrefetched() && entry.getHits() == 0) {
+            wastedPrefetches++;
+        }
+        invalidate(entry.getKey());
+        recordCache.remove(entry.getKey());
+        expiryQueue.remove(entry);
+        numRecords -= entry.getRecords().length;
+        numBytes -= entry.getEstimatedSize();
+    }
+
+    /*
+     * Insert or replace one RRset or negative entry, evicting LRU entries if the
+     * candidate wins admission. A restored RRset always wins: the snapshot lists
+     * each shard's RRsets coldest first, so a later one is the hotter of the two.
+     */
+    private void putRRset(DNSKey key, ArrayList<DNSRecord> records, boolean negative, boolean restoring) {
+        var candidate = new DNSCacheEntry(key, records, staleMillis, negative);
+
+        var existing = recordCache.get(key);
+        boolean resident = existing != null;
+        if(resident) {
+            if(existing.isPrefetching() && !negative) {
+                candidate.setPrefetched();
+            }
+            removeEntry(existing);
+        }
+
+        int candidateFreq = sketch.frequency(key.hashCode());
+        while(overBudget(records.size(), candidate.getEstimatedSize())) {
+            if(recordCache.isEmpty()) {
+                rejections++;
+                return;
+            }
+            var victim = recordCache.values().iterator().next();
+            if(!resident && !restoring && candidateFreq <= sketch.frequency(victim.getKey().hashCode())) {
+                rejections++;
+                return;
+            }
+            removeEntry(victim);
+            evictions++;
+        }
+
+        invalidate(key);
+        recordCache.put(key, candidate);
+        expiryQueue.add(candidate);
+        numRecords += records.size();
+        numBytes += candidate.getEstimatedSize();
+    }
+
+    synchronized void addEntry(DNSRecord record) {
+        var key = record.getKey();
+        var existing = recordCache.get(key);
+
+        var records = new ArrayList<DNSRecord>();
+        if(existing != null && !existing.isNegative()) {
+            /* a fresh copy of a record we already hold replaces the old one instead of piling up */
+            for(var cached : existing.getRecords()) {
+                if(!cached.getData().equals(record.getData())) {
+                    records.add(cached);
+                }
+            }
+        }
+        records.add(record);
+        putRRset(key, records, false, false);
+    }
+
+    /* one complete RRset, replacing what we had cached for its key */
+    synchronized void addRRset(DNSKey key, ArrayList<DNSRecord> records) {
+        putRRset(key, records, false, false);
+    }
+
+    /* a negative entry under its DNSCache.negativeKey(), holding the SOA with its TTL already capped */
+    synchronized void addNegative(DNSKey key, DNSRecord soa) {
+        var records = new ArrayList<DNSRecord>(1);
+        records.add(soa);
+        putRRset(key, records, true, false);
+    }
+
+    /* drop the records of one entry that are past their stale window, keeping any that are still usable */
+    private DNSCacheEntry expireEntry(DNSCacheEntry entry, long now) {
+        if(entry.isNegative()) {
+            removeEntry(entry);
+            return null;
+        }
+        var remaining = new ArrayList<DNSRecord>();
+        for(var record : entry.getRecords()) {
+            if(record.getExpiresAt() + staleMillis >= now) {
+                remaining.add(record);
+            }
+        }
+
+        if(remaining.size() == 0) {
+            removeEntry(entry);
+            return null;
+        }
+
+        /*
+         * Records in an RRset can carry different TTLs. The entry keeps its place,
+         * its hits and when it was stored, so prefetch and serve-stale still see
+         * its real age and TinyLFU isn't misled by a fresh-looking entry.
+         */
+        invalidate(entry.getKey());
+        numRecords -= entry.getRecords().length;
+        numBytes -= entry.getEstimatedSize();
+        entry.setRecords(remaining);
+        expiryQueue.update(entry);
+        numRecords += remaining.size();
+        numBytes += entry.getEstimatedSize();
+        return entry;
+    }
+
+    /* expire at most limit due entries, so the cost per call stays flat however large the cache is */
+    synchronized void checkCache(int limit) {
+        long now = Instant.now().toEpochMilli();
+
+        for(int i = 0; i < limit; i++) {
+            var entry = expiryQueue.peek();
+            if(entry == null || entry.getRemoveAt() >= now) {
+                return;
+            }
+            expireEntry(entry, now);
+        }
+    }
+
+    /* find an entry, pruning it first if it is past its stale window but has not been swept yet */
+    private DNSCacheEntry lookup(DNSKey key, long now) {
+        var entry = recordCache.get(key);
+        if(entry != null && entry.getRemoveAt() < now) {
+            entry = expireEntry(entry, now);
+        }
+        return entry;
+    }
+
+    /* key may be a probe; it is only used for the lookup and never stored */
+    synchronized ArrayList<DNSRecord> returnRecords(DNSKey key) {
+        sketch.increment(key.hashCode());
+
+        long now = Instant.now().toEpochMilli();
+        var entry = lookup(key, now);
+
+        var fresh = new ArrayList<DNSRecord>();
+        if(entry != null && !entry.isNegative()) {
+            for(var record : entry.getRecords()) {
+                if(record.getExpiresAt() >= now) {
+                    fresh.add(record);
+                }
+            }
+        }
+
+        if(fresh.size() == 0) {
+            /* a cached negative answer is counted by returnNegative() instead */
+            if(findNegative(key, now) == null) {
+                misses++;
+            }
+        } else {
+            hits++;
+            entry.hit();
+            if(entry.isPrefetched() && entry.getHits() == 1) {
+                usefulPrefetches++;
+            }
+        }
+        return fresh;
+    }
+
+    /* see DNSCache.shouldPrefetch(); the owner's rate limit is only consulted once the entry is due */
+    synchronized boolean shouldPrefetch(DNSKey key, DNSCache owner) {
+        var entry = recordCache.get(key);
+        if(entry == null || entry.isNegative() || entry.isPrefetching() || entry.getHits() < PREFETCH_MIN_HITS) {
+            return false;
+        }
+        long now = Instant.now().toEpochMilli();
+        long lifetime = entry.getExpiresAt() - entry.getStoredAt();
+        if((now - entry.getStoredAt()) * 100 < lifetime * DNSCache.PREFETCH_PERCENT || now >= entry.getExpiresAt()) {
+            return false;
+        }
+        if(!owner.takePrefetchToken(now)) {
+            limitedPrefetches++;
+            return false;
+        }
+        entry.setPrefetching();
+        prefetches++;
+        return true;
+    }
+
+    /* the negative entry covering key, if there is one that hasn't expired */
+    private DNSCacheEntry findNegative(DNSKey key, long now) {
+        var entry = lookup(key, now);
+        if(entry == null || !entry.isNegative()) {
+            entry = lookup(DNSCache.negativeKey(key, 3), now);
+        }
+        if(entry == null || !entry.isNegative() || entry.getExpiresAt() < now) {
+            return null;
+        }
+        return entry;
+    }
+
+    synchronized int returnNegative(DNSKey key, ArrayList<DNSRecord> authority) {
+        /*
+         * An NXDOMAIN entry is kept under the name with type 0, which no question
+         * ever asks for, so count demand for it here; otherwise it could never win
+         * admission once the cache is full. NODATA is under the question itself,
+         * already counted by returnRecords() or peekRecords().
+         */
+        sketch.increment(DNSCache.negativeKey(key, 3).hashCode());
+
+        var entry = findNegative(key, Instant.now().toEpochMilli());
+        if(entry == null) {
+            return -1;
+        }
+        negativeHits++;
+        Collections.addAll(authority, entry.getRecords());
+        return entry.getKey().getType() == 0 ? 3 : 0;
+    }
+
+    synchronized ArrayList<DNSRecord> peekRecords(DNSKey key) {
+        sketch.increment(key.hashCode());
+
+        long now = Instant.now().toEpochMilli();
+        var entry = lookup(key, now);
+
+        var fresh = new ArrayList<DNSRecord>();
+        if(entry != null && !entry.isNegative()) {
+            for(var record : entry.getRecords()) {
+                if(record.getExpiresAt() >= now) {
+                    fresh.add(record);
+                }
+            }
+        }
+        return fresh;
+    }
+
+    synchronized ArrayList<DNSRecord> returnStaleRecords(DNSKey key) {
+        var stale = new ArrayList<DNSRecord>();
+        if(staleMillis == 0) {
+            return stale;
+        }
+
+        long now = Instant.now().toEpochMilli();
+        var entry = lookup(key, now);
+        if(entry != null && !entry.isNegative()) {
+            Collections.addAll(stale, entry.getRecords());
+            staleHits++;
+        }
+        return stale;
+    }
+
+    /* write this shard's RRsets to out, least recently used first; returns how many */
+    synchronized int writeRRsets(DataOutputStream out) throws IOException {
+        int written = 0;
+        for(var entry : recordCache.values()) {
+            if(!entry.isNegative()) {
+                DNSCacheSnapshot.writeRRset(out, entry.getRecords());
+                written++;
+            }
+        }
+        return written;
+    }
+
+    synchronized boolean restoreRRset(ArrayList<DNSRecord> records) {
+        long now = Instant.now().toEpochMilli();
+        var remaining = new ArrayList<DNSRecord>(records.size());
+        for(var record : records) {
+            if(record.getExpiresAt() + staleMillis >= now) {
+                remaining.add(record);
+            }
+        }
+        if(remaining.size() == 0) {
+            return false;
+        }
+        putRRset(remaining.get(0).getKey(), remaining, false, true);
+        return true;
+    }
+
+    synchronized long getRecordCount() {
+        return numRecords;
+    }
+
+    synchronized long getEstimatedBytes() {
+        return numBytes;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    synchronized long getRejections() {
+        return rejections;
+    }
+
+    synchronized long getStaleHits() {
+        return staleHits;
+    }
+
+    synchronized long getNegativeHits() {
+        return negativeHits;
+    }
+
+    synchronized long getPrefetches() {
+        return prefetches;
+    }
+
+    synchronized long getUsefulPrefetches() {
+        return usefulPrefetches;
+    }
+
+    synchronized long getWastedPrefetches() {
+        return wastedPrefetches;
+    }
+
+    synchronized long getLimitedPrefetches() {
+        return limitedPrefetches;
+    }
+}
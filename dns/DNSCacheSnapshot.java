@@ -0,0 +1,99 @@
+package dns;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+
+/*
+ * Saves the cache to disk and loads it back, so a restart does not begin with an
+ * empty cache and a burst of upstream queries. The file is a stream of RRsets:
+ *
+ *   header   magic "DNSC", version
+ *   rrset    record count (u16), then per record the time it was stored (ms since
+ *            the epoch, u64), its length (u16) and its wire RR with the original TTL
+ *   end      a record count of 0
+ *
+ * Both directions stream through a buffer one RRset at a time. Writing locks one
+ * shard at a time and encodes its RRsets straight into the stream; loading keeps the
+ * stored timestamps, so TTLs keep counting down across the restart, and drops
+ * anything that expired in the meantime. RRsets are written least recently used
+ * first and loaded in that order, each one allowed to evict older ones, so the
+ * LRU order comes back as it was and a smaller cap keeps the hottest RRsets.
+ */
+public class DNSCacheSnapshot {
+
+    final private static int MAGIC = 0x444e5343;
+    final private static int VERSION = 1;
+    final private static int BUFFER_SIZE = 1 << 16;
+
+    /* write the whole cache to file_name, replacing it atomically; returns the number of RRsets written */
+    public static int write(DNSCache cache, String file_name) throws IOException {
+        int written;
+        var tmp = Path.of(file_name + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile()), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            written = cache.writeRRsets(out);
+            out.writeShort(0);
+        }
+        Files.move(tmp, Path.of(file_name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return written;
+    }
+
+    /* one RRset in the format above; called by each shard under its lock */
+    static void writeRRset(DataOutputStream out, DNSRecord[] rrset) throws IOException {
+        out.writeShort(rrset.length);
+        for(var record : rrset) {
+            var wire = record.getWire();
+            out.writeLong(record.getStoredAt());
+            out.writeShort(wire.length);
+            out.write(wire);
+        }
+    }
+
+    /* load a snapshot into cache; returns the number of unexpired RRsets read, some of which a smaller cap may have evicted again, or 0 if there is no snapshot yet */
+    public static int load(DNSCache cache, String file_name) throws IOException {
+        int kept = 0;
+        try (var in = new DataInputStream(new BufferedInputStream(new FileInputStream(file_name), BUFFER_SIZE))) {
+            if(in.readInt() != MAGIC) {
+                throw new IOException("not a cache snapshot");
+            }
+            if(in.readInt() != VERSION) {
+                throw new IOException("unsupported snapshot version");
+            }
+
+            while(true) {
+                int count = in.readUnsignedShort();
+                if(count == 0) {
+                    break;
+                }
+                var rrset = new ArrayList<DNSRecord>(count);
+                for(int i = 0; i < count; i++) {
+                    long storedAt = in.readLong();
+                    var wire = new byte[in.readUnsignedShort()];
+                    in.readFully(wire);
+                    rrset.add(new DNSRecord(wire, storedAt));
+                }
+                if(cache.restoreRRset(rrset)) {
+                    kept++;
+                }
+            }
+        } catch(FileNotFoundException e) {
+            return 0;
+        } catch(EOFException e) {
+            /* a snapshot cut short by a crash still has usable RRsets before the cut */
+            System.out.println("Cache snapshot truncated, loaded what was there");
+        }
+        return kept;
+    }
+}
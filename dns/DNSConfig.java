@@ -0,0 +1,384 @@
+package dns;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+
+/* server settings, parsed from --name=value command line options */
+public class DNSConfig {
+
+    private String zoneFile;
+
+    /* zones we answer every name under, misses included; null for none, so every miss is forwarded */
+    private String[] zoneApexes;
+
+    /* cache caps, 0 means unbounded */
+    private long cacheMaxEntries;
+    private long cacheMaxBytes;
+
+    /* independently locked partitions of the cache, a power of two */
+    private int cacheShards;
+
+    /* seconds an expired record may still be served while upstream is refreshed, 0 disables */
+    private int maxStaleSeconds;
+
+    /* most popular records refreshed ahead of expiry per second, 0 disables prefetching */
+    private int prefetchRate;
+
+    /* number of receiver threads, each with its own SO_REUSEPORT socket where supported */
+    private int threads;
+
+    /* serve from non-blocking DatagramChannels with pooled direct buffers instead of DatagramSockets */
+    private boolean nio;
+
+    /* number of fully encoded responses kept for hot names, 0 disables the packet cache */
+    private int packetCacheEntries;
+
+    /* compress names in the replies we build */
+    private boolean compression;
+
+    /* seconds between checks of the zone file for changes, 0 reloads only on SIGHUP */
+    private int zoneReloadSeconds;
+
+    /* resolvers misses are forwarded to */
+    private ArrayList<InetSocketAddress> upstreams;
+
+    /* hedge a query to a second upstream once it is slower than this percentile of the first, 0 disables */
+    private int hedgePercentile;
+
+    /* milliseconds to wait for an upstream reply before retrying, then answering SERVFAIL */
+    private int upstreamTimeout;
+
+    /* where the cache is saved for warm restarts, null disables snapshots */
+    private String cacheSnapshot;
+
+    /* seconds between snapshots while running, 0 saves only at shutdown */
+    private int snapshotSeconds;
+
+    /* resolve misses ourselves from the root down instead of forwarding them upstream */
+    private boolean recursive;
+
+    /* named.root style file of root server addresses, null for the built-in list */
+    private String rootHints;
+
+    /* port authoritative servers are asked on in recursive mode, and root hints without one */
+    private int serverPort;
+
+    /* port we answer clients on */
+    private int port;
+
+    /* how much per-packet logging, one of DNSLog's levels, and log one packet event in logSample */
+    private int logLevel;
+    private int logSample;
+
+    /* loopback port the metrics page is served on, 0 disables it */
+    private int metricsPort;
+
+    public DNSConfig(String[] args) {
+        zoneFile = null;
+        zoneApexes = null;
+        cacheMaxEntries = 0;
+        cacheMaxBytes = 0;
+        cacheShards = DNSCache.DEFAULT_SHARDS;
+        maxStaleSeconds = 0;
+        prefetchRate = 0;
+        threads = 1;
+        nio = false;
+        packetCacheEntries = 0;
+        compression = true;
+        zoneReloadSeconds = 0;
+        upstreams = null;
+        hedgePercentile = 95;
+        upstreamTimeout = 2000;
+        cacheSnapshot = null;
+        snapshotSeconds = 300;
+        recursive = false;
+        rootHints = null;
+        serverPort = 53;
+        port = 53;
+        logLevel = DNSLog.INFO;
+        logSample = 1;
+        metricsPort = 0;
+
+        for(var arg : args) {
+            if(!arg.startsWith("--")) {
+                if(zoneFile != null) {
+                    usage();
+                }
+                zoneFile = arg;
+                continue;
+            }
+
+            var parts = arg.substring(2).split("=", 2);
+            if(parts.length != 2) {
+                usage();
+            }
+            var name = parts[0];
+            var value = parts[1];
+
+            if(name.equals("cache-entries")) {
+                cacheMaxEntries = parseSize(value);
+            } else if(name.equals("cache-bytes")) {
+                cacheMaxBytes = parseSize(value);
+            } else if(name.equals("cache-shards")) {
+                cacheShards = (int)parseNumber(value);
+                if(cacheShards < 1 || Integer.bitCount(cacheShards) != 1) {
+                    System.out.println("Error: cache shards must be a power of two");
+                    System.exit(0);
+                }
+            } else if(name.equals("serve-stale")) {
+                maxStaleSeconds = (int)parseNumber(value);
+            } else if(name.equals("prefetch")) {
+                prefetchRate = (int)parseNumber(value);
+            } else if(name.equals("threads")) {
+                threads = (int)parseNumber(value);
+                if(threads < 1) {
+                    System.out.println("Error: need at least one thread");
+                    System.exit(0);
+                }
+            } else if(name.equals("io")) {
+                if(value.equals("nio")) {
+                    nio = true;
+                } else if(value.equals("blocking")) {
+                    nio = false;
+                } else {
+                    usage();
+                }
+            } else if(name.equals("compression")) {
+                if(value.equals("on")) {
+                    compression = true;
+                } else if(value.equals("off")) {
+                    compression = false;
+                } else {
+                    usage();
+                }
+            } else if(name.equals("packet-cache")) {
+                packetCacheEntries = (int)parseNumber(value);
+            } else if(name.equals("zone-reload")) {
+                zoneReloadSeconds = (int)parseNumber(value);
+            } else if(name.equals("zone-apex")) {
+                /* none is accepted as an explicit spelling of the default, so it changes nothing */
+                if(value.equals("none")) {
+                    zoneApexes = null;
+                } else {
+                    zoneApexes = value.split(",");
+                }
+            } else if(name.equals("upstream")) {
+                try {
+                    upstreams = DNSUpstreams.parse(value);
+                } catch(IllegalArgumentException e) {
+                    System.out.println("Error: bad upstream list " + value);
+                    System.exit(0);
+                }
+                if(upstreams.isEmpty()) {
+                    usage();
+                }
+            } else if(name.equals("hedge")) {
+                hedgePercentile = (int)parseNumber(value);
+            } else if(name.equals("upstream-timeout")) {
+                upstreamTimeout = (int)parseNumber(value);
+                if(upstreamTimeout < DNSInFlightTable.MIN_TIMEOUT_MILLIS || upstreamTimeout > DNSInFlightTable.MAX_TIMEOUT_MILLIS) {
+                    System.out.println("Error: upstream timeout must be " + DNSInFlightTable.MIN_TIMEOUT_MILLIS + " to " + DNSInFlightTable.MAX_TIMEOUT_MILLIS + " ms");
+                    System.exit(0);
+                }
+            } else if(name.equals("cache-snapshot")) {
+                cacheSnapshot = value;
+            } else if(name.equals("snapshot-interval")) {
+                snapshotSeconds = (int)parseNumber(value);
+            } else if(name.equals("resolve")) {
+                if(value.equals("recursive")) {
+                    recursive = true;
+                } else if(value.equals("forward")) {
+                    recursive = false;
+                } else {
+                    usage();
+                }
+            } else if(name.equals("root-hints")) {
+                rootHints = value;
+            } else if(name.equals("server-port")) {
+                serverPort = (int)parseNumber(value);
+            } else if(name.equals("port")) {
+                port = (int)parseNumber(value);
+            } else if(name.equals("log")) {
+                if(value.equals("info")) {
+                    logLevel = DNSLog.INFO;
+                } else if(value.equals("packets")) {
+                    logLevel = DNSLog.PACKETS;
+                } else if(value.equals("messages")) {
+                    logLevel = DNSLog.MESSAGES;
+                } else {
+                    usage();
+                }
+            } else if(name.equals("log-sample")) {
+                logSample = (int)parseNumber(value);
+                if(logSample < 1) {
+                    System.out.println("Error: log sample must be at least 1");
+                    System.exit(0);
+                }
+            } else if(name.equals("metrics")) {
+                metricsPort = (int)parseNumber(value);
+            } else {
+                System.out.println("Unknown option: " + arg);
+                usage();
+            }
+        }
+
+        if(zoneFile == null) {
+            usage();
+        }
+        if(upstreams == null) {
+            upstreams = DNSUpstreams.parse("127.0.0.53:53");
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage: sudo java dns.DNSServer [options] zone_file");
+        System.out.println("Options:");
+        System.out.println("  --port=N                    port to answer clients on (default 53)");
+        System.out.println("  --cache-entries=N           maximum number of cached records (default unbounded)");
+        System.out.println("  --cache-bytes=N             estimated cache memory budget, accepts K/M/G suffixes (default unbounded)");
+        System.out.println("  --cache-shards=N            split the cache into N independently locked shards, a power of two (default 16)");
+        System.out.println("  --serve-stale=SECS          answer from records expired up to SECS ago while refreshing them (default off)");
+        System.out.println("  --prefetch=N                refresh popular records near expiry before clients ask, at most N a second (default off)");
+        System.out.println("  --threads=N                 number of packet receiver threads (default 1)");
+        System.out.println("  --io=MODE                   blocking (default) or nio for a selector loop with pooled buffers");
+        System.out.println("  --packet-cache=N            keep up to N fully encoded responses for hot names (default off)");
+        System.out.println("  --compression=MODE          on (default) or off for name compression in replies");
+        System.out.println("  --zone-reload=SECS          reload the zone file when it changes, checking every SECS (default SIGHUP only)");
+        System.out.println("  --zone-apex=NAME,...        answer NXDOMAIN/NODATA for misses under these zones instead of forwarding them, none for no zones (default none)");
+        System.out.println("  --upstream=HOST[:PORT],...  resolvers to forward misses to, fastest first (default 127.0.0.53:53)");
+        System.out.println("  --hedge=PCT                 also ask a second upstream once a query is slower than PCT% of replies (default 95, 0 off)");
+        System.out.println("  --upstream-timeout=MS       wait MS for an upstream reply before retrying elsewhere, 10 to 10230 (default 2000)");
+        System.out.println("  --cache-snapshot=FILE       save the cache to FILE and load it back at startup (default off)");
+        System.out.println("  --snapshot-interval=SECS    also save it every SECS while running, 0 for shutdown only (default 300)");
+        System.out.println("  --resolve=MODE              forward (default) misses upstream, or recursive to resolve them from the root");
+        System.out.println("  --root-hints=FILE           root server addresses for recursive mode, named.root format (default built in)");
+        System.out.println("  --server-port=N             port nameservers are asked on in recursive mode, and root hints given without one (default 53)");
+        System.out.println("  --log=LEVEL                 info (default) for startup and failures, packets for a line per query and reply, messages to also dump them");
+        System.out.println("  --log-sample=N              at packets or messages, log only one in N packet events (default 1)");
+        System.out.println("  --metrics=PORT              serve counters and latency histograms at http://127.0.0.1:PORT/metrics (default off)");
+        System.exit(0);
+    }
+
+    private static long parseNumber(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch(NumberFormatException e) {
+            System.out.println("Error: bad number " + value);
+            System.exit(0);
+        }
+        return 0;
+    }
+
+    /* plain number with an optional K, M or G suffix */
+    private static long parseSize(String value) {
+        long multiplier = 1;
+        var upper = value.toUpperCase();
+        if(upper.endsWith("K")) {
+            multiplier = 1024L;
+        } else if(upper.endsWith("M")) {
+            multiplier = 1024L * 1024;
+        } else if(upper.endsWith("G")) {
+            multiplier = 1024L * 1024 * 1024;
+        }
+        if(multiplier != 1) {
+            upper = upper.substring(0, upper.length() - 1);
+        }
+        return parseNumber(upper) * multiplier;
+    }
+
+    public String getZoneFile() {
+        return zoneFile;
+    }
+
+    public String[] getZoneApexes() {
+        return zoneApexes;
+    }
+
+    public long getCacheMaxEntries() {
+        return cacheMaxEntries;
+    }
+
+    public long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+
+    public int getPrefetchRate() {
+        return prefetchRate;
+    }
+
+    public int getCacheShards() {
+        return cacheShards;
+    }
+
+    public int getMaxStaleSeconds() {
+        return maxStaleSeconds;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public boolean useNio() {
+        return nio;
+    }
+
+    public int getPacketCacheEntries() {
+        return packetCacheEntries;
+    }
+
+    public boolean useCompression() {
+        return compression;
+    }
+
+    public int getZoneReloadSeconds() {
+        return zoneReloadSeconds;
+    }
+
+    public ArrayList<InetSocketAddress> getUpstreams() {
+        return upstreams;
+    }
+
+    public int getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    public int getUpstreamTimeout() {
+        return upstreamTimeout;
+    }
+
+    public String getCacheSnapshot() {
+        return cacheSnapshot;
+    }
+
+    public int getSnapshotSeconds() {
+        return snapshotSeconds;
+    }
+
+    public boolean isRecursive() {
+        return recursive;
+    }
+
+    public String getRootHints() {
+        return rootHints;
+    }
+
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getLogLevel() {
+        return logLevel;
+    }
+
+    public int getLogSample() {
+        return logSample;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+}
@@ -0,0 +1,95 @@
+package dns;
+
+import java.util.ArrayList;
+
+/* binary min-heap of cache entries ordered by removal time, with O(log n) removal of arbitrary entries */
+class DNSExpiryQueue {
+
+    private ArrayList<DNSCacheEntry> heap;
+
+    DNSExpiryQueue() {
+        heap = new ArrayList<DNSCacheEntry>();
+    }
+
+    int size() {
+        return heap.size();
+    }
+
+    DNSCacheEntry peek() {
+        if(heap.isEmpty()) {
+            return null;
+        }
+        return heap.get(0);
+    }
+
+    void add(DNSCacheEntry entry) {
+        entry.heapIndex = heap.size();
+        heap.add(entry);
+        siftUp(entry.heapIndex);
+    }
+
+    void remove(DNSCacheEntry entry) {
+        int i = entry.heapIndex;
+        if(i < 0) {
+            return;
+        }
+        var last = heap.remove(heap.size() - 1);
+        entry.heapIndex = -1;
+        if(last != entry) {
+            heap.set(i, last);
+            last.heapIndex = i;
+            siftDown(i);
+            siftUp(last.heapIndex);
+        }
+    }
+
+    /* re-position an entry after its removal time changed */
+    void update(DNSCacheEntry entry) {
+        if(entry.heapIndex < 0) {
+            add(entry);
+            return;
+        }
+        siftDown(entry.heapIndex);
+        siftUp(entry.heapIndex);
+    }
+
+    private void swap(int i, int j) {
+        var a = heap.get(i);
+        var b = heap.get(j);
+        heap.set(i, b);
+        heap.set(j, a);
+        a.heapIndex = j;
+        b.heapIndex = i;
+    }
+
+    private void siftUp(int i) {
+        while(i > 0) {
+            int parent = (i - 1) / 2;
+            if(heap.get(parent).getRemoveAt() <= heap.get(i).getRemoveAt()) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        int n = heap.size();
+        while(true) {
+            int left = 2 * i + 1;
+            int right = left + 1;
+            int smallest = i;
+            if(left < n && heap.get(left).getRemoveAt() < heap.get(smallest).getRemoveAt()) {
+                smallest = left;
+            }
+            if(right < n && heap.get(right).getRemoveAt() < heap.get(smallest).getRemoveAt()) {
+                smallest = right;
+            }
+            if(smallest == i) {
+                return;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package dns;
+
+/*
+ * Count-min sketch of small saturating counters used for TinyLFU admission.
+ * Every counter is halved once sampleSize increments have been recorded, so
+ * the estimate follows recent popularity instead of all-time popularity.
+ */
+class DNSFrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = { 0x97cb3127, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f };
+
+    private byte[] counters;
+    private int width_mask;
+    private int sample_size;
+    private int additions;
+
+    DNSFrequencySketch(int expected_entries) {
+        int width = Integer.highestOneBit(Math.max(expected_entries, 16) - 1) << 1;
+        counters = new byte[DEPTH * width];
+        width_mask = width - 1;
+        sample_size = 10 * width;
+        additions = 0;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        h ^= h >>> 16;
+        return row * (width_mask + 1) + (h & width_mask);
+    }
+
+    void increment(int hash) {
+        boolean added = false;
+        for(int row = 0; row < DEPTH; row++) {
+            int i = indexOf(hash, row);
+            if(counters[i] < MAX_COUNT) {
+                counters[i]++;
+                added = true;
+            }
+        }
+        if(added && ++additions >= sample_size) {
+            reset();
+        }
+    }
+
+    int frequency(int hash) {
+        int min = MAX_COUNT;
+        for(int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counters[indexOf(hash, row)]);
+        }
+        return min;
+    }
+
+    private void reset() {
+        for(int i = 0; i < counters.length; i++) {
+            counters[i] = (byte)(counters[i] >> 1);
+        }
+        additions /= 2;
+    }
+}
@@ -0,0 +1,416 @@
+package dns;
+
+import java.net.SocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * Queries we have sent upstream and not yet had answered. Every upstream query
+ * gets an ID picked at random by us rather than the client's, so two clients that
+ * chose the same ID can't collide and an off-path attacker has to guess it. A reply
+ * only matches if its ID, question and source all agree with what we sent.
+ *
+ * Deadlines sit on a timer wheel of TICK_MILLIS slots, each an intrusive doubly
+ * linked list, so adding, answering and expiring a query are all O(1). All methods
+ * are synchronized; every one of them does a constant amount of work per query.
+ *
+ * Where a query goes is up to DNSUpstreams. A query can be outstanding at two
+ * upstreams at once under the same ID once it has been hedged, and a retry after a
+ * timeout goes to an upstream this query has not tried yet.
+ *
+ * In recursive mode a query carries a DNSResolver.Task instead, which picks both
+ * the question and the server for each step. Between steps the query is parked:
+ * out of byID and the wheel but still in byQuestion, so clients asking the same
+ * thing keep joining it, until the caller either resend()s it or finish()es it.
+ */
+class DNSInFlightTable {
+
+    final private static int TICK_MILLIS = 10;
+    final private static int WHEEL_SIZE = 1024;
+
+    /* the upstream timeouts the wheel can hold: one tick up to one lap less a tick */
+    final static int MIN_TIMEOUT_MILLIS = TICK_MILLIS;
+    final static int MAX_TIMEOUT_MILLIS = (WHEEL_SIZE - 1) * TICK_MILLIS;
+
+    /* at most half the ID space is in use, so a random pick is free at least half the time */
+    final private static int MAX_IN_FLIGHT = 32768;
+
+    /* returned by add() when the table is full */
+    final static Query FULL = new Query(null, null);
+
+    /* what expire() decided for a due query */
+    final static int HEDGE = 0;
+    final static int RESEND = 1;
+    final static int FAILED = 2;
+    /* an iterative step whose server didn't answer; the query is parked until its task decides what next */
+    final static int TIMED_OUT = 3;
+
+    static class Query {
+        DNSKey key;
+        DNSMessage client_query;
+        ArrayList<DNSMessage> waiters;
+
+        int id;
+        byte[] packet;
+        SocketAddress target;
+        long sent_nanos;
+        int tries;
+
+        /* the second upstream a slow query was also sent to, null if it wasn't hedged */
+        SocketAddress hedge_target;
+        long hedge_nanos;
+        boolean hedge_pending;
+        long timeout_tick;
+        ArrayList<SocketAddress> tried;
+        int outcome;
+
+        /* the iterative resolution this query is for, null when forwarding */
+        DNSResolver.Task task;
+
+        long deadline_tick;
+        Query prev;
+        Query next;
+
+        Query(DNSKey key, DNSMessage client_query) {
+            this.key = key;
+            this.client_query = client_query;
+            this.waiters = new ArrayList<DNSMessage>();
+            this.id = -1;
+        }
+
+        /* the client's query under our upstream ID, ready to send to target */
+        byte[] getPacket() {
+            return packet;
+        }
+
+        SocketAddress getTarget() {
+            return target;
+        }
+
+        SocketAddress getHedgeTarget() {
+            return hedge_target;
+        }
+
+        DNSResolver.Task getTask() {
+            return task;
+        }
+
+        /* HEDGE, RESEND, FAILED or TIMED_OUT, for a query handed back by expire() */
+        int getOutcome() {
+            return outcome;
+        }
+
+        /* clients to answer, each under the ID it sent; empty for a background refresh */
+        ArrayList<DNSMessage> getWaiters() {
+            return waiters;
+        }
+
+        DNSMessage getClientQuery() {
+            return client_query;
+        }
+    }
+
+    private Query[] byID;
+    private HashMap<DNSKey,Query> byQuestion;
+    private Query[] wheel;
+    /* volatile so isDue() can skip taking the lock on the common path */
+    private volatile long current_tick;
+    private int timeout_ticks;
+    private int timeoutMillis;
+    private SecureRandom random;
+    private DNSUpstreams upstreams;
+
+    private int size;
+    private long timeouts;
+    private long unmatched;
+    private long coalesced;
+    private long rejected;
+    private long hedges;
+    private long hedgeWins;
+
+    DNSInFlightTable(int timeoutMillis, DNSUpstreams upstreams) {
+        this.upstreams = upstreams;
+        this.timeoutMillis = timeoutMillis;
+        byID = new Query[65536];
+        byQuestion = new HashMap<DNSKey,Query>();
+        wheel = new Query[WHEEL_SIZE];
+        current_tick = System.currentTimeMillis() / TICK_MILLIS;
+        timeout_ticks = timeoutMillis / TICK_MILLIS;
+        random = new SecureRandom();
+    }
+
+    private int freeID() {
+        for(int i = 0; i < 16; i++) {
+            int id = random.nextInt(65536);
+            if(byID[id] == null) {
+                return id;
+            }
+        }
+        /* practically never reached while the table is at most half full */
+        int start = random.nextInt(65536);
+        for(int i = 0; i < 65536; i++) {
+            int id = (start + i) & 0xffff;
+            if(byID[id] == null) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    private void link(Query query) {
+        int slot = (int)(query.deadline_tick % WHEEL_SIZE);
+        query.prev = null;
+        query.next = wheel[slot];
+        if(query.next != null) {
+            query.next.prev = query;
+        }
+        wheel[slot] = query;
+    }
+
+    private void unlink(Query query) {
+        if(query.prev != null) {
+            query.prev.next = query.next;
+        } else {
+            wheel[(int)(query.deadline_tick % WHEEL_SIZE)] = query.next;
+        }
+        if(query.next != null) {
+            query.next.prev = query.prev;
+        }
+        query.prev = null;
+        query.next = null;
+    }
+
+    /* give query a fresh ID and deadline, pick where it goes and (re)build its upstream packet */
+    private void send(Query query, long now) {
+        query.id = freeID();
+        byID[query.id] = query;
+        query.hedge_target = null;
+        query.sent_nanos = System.nanoTime();
+        query.tries++;
+        long start_tick = Math.max(now / TICK_MILLIS, current_tick);
+        query.timeout_tick = start_tick + timeout_ticks;
+
+        if(query.task != null) {
+            query.target = query.task.getServer();
+            query.packet = DNSMessage.buildQuery(query.id, query.task.getQuestion());
+            query.hedge_pending = false;
+            query.deadline_tick = query.timeout_tick;
+            link(query);
+            return;
+        }
+
+        query.target = upstreams.pick(query.tried);
+        query.packet = Arrays.copyOf(query.client_query.getData(), query.client_query.getDataLength());
+        query.packet[0] = (byte)(query.id >> 8);
+        query.packet[1] = (byte)query.id;
+
+        /* wake up early to hedge if this upstream is usually quicker than this */
+        int hedge_millis = upstreams.hedgeDelayMillis(query.target);
+        int hedge_ticks = (hedge_millis + TICK_MILLIS - 1) / TICK_MILLIS;
+        query.hedge_pending = hedge_millis > 0 && hedge_ticks < timeout_ticks;
+        query.deadline_tick = query.hedge_pending ? start_tick + hedge_ticks : query.timeout_tick;
+        link(query);
+    }
+
+    private void remove(Query query) {
+        unlink(query);
+        byID[query.id] = null;
+        if(query.key != null) {
+            byQuestion.remove(query.key, query);
+        }
+        size--;
+    }
+
+    /*
+     * Register a miss. Returns the query to send upstream, null if the same question
+     * is already in flight and the client was added to its waiters, or FULL. key may
+     * be null for a query we can't coalesce, or a probe (it is copied). A background
+     * refresh passes wait=false. task is null when forwarding; otherwise it has its
+     * first step ready and is dropped if the query is coalesced.
+     */
+    synchronized Query add(DNSKey key, DNSMessage client_query, boolean wait, DNSResolver.Task task) {
+        if(key != null) {
+            var current = byQuestion.get(key);
+            if(current != null) {
+                if(wait) {
+                    current.waiters.add(client_query);
+                    coalesced++;
+                }
+                return null;
+            }
+        }
+        if(size >= MAX_IN_FLIGHT) {
+            rejected++;
+            return FULL;
+        }
+
+        var query = new Query(key == null ? null : key.copy(), client_query);
+        query.task = task;
+        if(wait) {
+            query.waiters.add(client_query);
+        }
+        send(query, System.currentTimeMillis());
+        if(query.key != null) {
+            byQuestion.put(query.key, query);
+        }
+        size++;
+        return query;
+    }
+
+    /* true if reply is about the question query last sent */
+    private static boolean sameQuestion(Query query, DNSMessage reply) {
+        var asked = query.task != null ? query.task.getQuestion() : query.key;
+        return asked == null ? reply.getQuestionKey() == null : asked.equals(reply.getQuestionKey());
+    }
+
+    /*
+     * The query a reply answers, removed from the table (or parked, for an iterative
+     * step), or null if its ID, question or source don't match ours. The RTT of
+     * whichever upstream answered is recorded.
+     */
+    synchronized Query match(DNSMessage reply) {
+        var query = byID[reply.getID()];
+        var source = reply.getSource();
+        if(query == null || !(source.equals(query.target) || source.equals(query.hedge_target)) || !sameQuestion(query, reply)) {
+            unmatched++;
+            return null;
+        }
+        if(query.task != null) {
+            unlink(query);
+            byID[query.id] = null;
+            return query;
+        }
+        remove(query);
+
+        long now = System.nanoTime();
+        boolean from_hedge = source.equals(query.hedge_target);
+        if(from_hedge) {
+            hedgeWins++;
+            upstreams.recordOvertaken(query.target, now - query.sent_nanos);
+        }
+        upstreams.recordReply(source, now - (from_hedge ? query.hedge_nanos : query.sent_nanos));
+        return query;
+    }
+
+    /* send a parked iterative query on under a new ID, to the server and question its task picked next */
+    synchronized void resend(Query query) {
+        send(query, System.currentTimeMillis());
+    }
+
+    /* take a parked iterative query whose task is done out of the table; returns the clients waiting on it */
+    synchronized ArrayList<DNSMessage> finish(Query query) {
+        if(query.key != null) {
+            byQuestion.remove(query.key, query);
+        }
+        size--;
+        return query.waiters;
+    }
+
+    /* cheap unlocked check whether expire() has any ticks to process */
+    boolean isDue() {
+        return System.currentTimeMillis() / TICK_MILLIS > current_tick;
+    }
+
+    /*
+     * Handle every query whose deadline has passed and add it to due with its
+     * outcome set. HEDGE: still waiting on its upstream, but now also sent to
+     * getHedgeTarget(). RESEND: timed out, and sent again under a new ID to an
+     * upstream it hasn't tried. FAILED: out of tries and removed from the table.
+     * TIMED_OUT: an iterative step went unanswered and the query is parked.
+     */
+    synchronized void expire(int maxTries, ArrayList<Query> due) {
+        long now = System.currentTimeMillis();
+        long now_tick = now / TICK_MILLIS;
+
+        /* after a long idle spell one turn of the wheel visits every slot, which is enough */
+        current_tick = Math.max(current_tick, now_tick - WHEEL_SIZE);
+        while(current_tick < now_tick) {
+            current_tick++;
+            var query = wheel[(int)(current_tick % WHEEL_SIZE)];
+            while(query != null) {
+                var next = query.next;
+                if(query.deadline_tick <= current_tick) {
+                    unlink(query);
+                    if(expireQuery(query, maxTries, now)) {
+                        due.add(query);
+                    }
+                }
+                query = next;
+            }
+        }
+    }
+
+    /* false if there was nothing to do, i.e. a hedge with no second upstream to go to */
+    private boolean expireQuery(Query query, int maxTries, long now) {
+        if(query.hedge_pending) {
+            query.hedge_pending = false;
+            query.deadline_tick = query.timeout_tick;
+            link(query);
+
+            query.hedge_target = upstreams.pickHedge(query.target);
+            if(query.hedge_target != null) {
+                query.hedge_nanos = System.nanoTime();
+                query.outcome = HEDGE;
+                hedges++;
+                return true;
+            }
+            return false;
+        }
+
+        timeouts++;
+        if(query.task != null) {
+            byID[query.id] = null;
+            query.outcome = TIMED_OUT;
+            return true;
+        }
+
+        upstreams.recordTimeout(query.target, timeoutMillis);
+        if(query.hedge_target != null) {
+            upstreams.recordTimeout(query.hedge_target, timeoutMillis);
+        }
+
+        if(query.tries < maxTries) {
+            if(query.tried == null) {
+                query.tried = new ArrayList<SocketAddress>(maxTries + 1);
+            }
+            query.tried.add(query.target);
+            if(query.hedge_target != null) {
+                query.tried.add(query.hedge_target);
+            }
+            byID[query.id] = null;
+            send(query, now);
+            query.outcome = RESEND;
+        } else {
+            byID[query.id] = null;
+            if(query.key != null) {
+                byQuestion.remove(query.key, query);
+            }
+            size--;
+            query.outcome = FAILED;
+        }
+        return true;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    synchronized long getUnmatched() {
+        return unmatched;
+    }
+
+    public synchronized String toString() {
+        return String.format("In flight: %d queries, %d coalesced, %d hedged (%d answered by the hedge), %d timeouts, %d unmatched replies, %d rejected (table full)",
+            size, coalesced, hedges, hedgeWins, timeouts, unmatched, rejected);
+    }
+}
@@ -0,0 +1,296 @@
+package dns;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Lookup key for the zone and the cache: an owner name in uncompressed, lower-cased
+ * wire format plus the numeric type and class. Keys stored in maps are immutable.
+ * A probe key is a reusable scratch key that is refilled straight from a packet
+ * buffer, so a lookup does not need to turn the question into a String first.
+ */
+public class DNSKey {
+
+    final private static int MAX_NAME_LENGTH = 255;
+
+    private byte[] name;
+    private int name_length;
+    private int type;
+    private int rclass;
+    private int hash;
+    /* hash of the name alone, the same for every type and class */
+    private int name_hash;
+
+    private DNSKey(byte[] name, int name_length, int type, int rclass) {
+        this.name = name;
+        this.name_length = name_length;
+        this.type = type;
+        this.rclass = rclass;
+        computeHash();
+    }
+
+    public static DNSKey of(String name_str, int type, int rclass) {
+        var name = new byte[name_str.length() + 2];
+        int len = 0;
+        if(name_str.length() != 0 && !name_str.equals(".")) {
+            for(var label : name_str.split("\\.")) {
+                name[len++] = (byte)label.length();
+                for(int i = 0; i < label.length(); i++) {
+                    name[len++] = toLower((byte)label.charAt(i));
+                }
+            }
+        }
+        name[len++] = 0;
+        return new DNSKey(name, len, type, rclass);
+    }
+
+    /*
+     * Key for the uncompressed wire-format name at the start of buf, such as a
+     * pre-encoded RR. The key shares buf when the name is already lower case, so
+     * buf must never change afterwards.
+     */
+    static DNSKey ofWire(byte[] buf, int type, int rclass) {
+        int len = 0;
+        boolean lower = true;
+        while(buf[len] != 0) {
+            for(int i = 1; i <= buf[len]; i++) {
+                if(toLower(buf[len + i]) != buf[len + i]) {
+                    lower = false;
+                }
+            }
+            len += buf[len] + 1;
+        }
+        len++;
+        if(lower) {
+            return new DNSKey(buf, len, type, rclass);
+        }
+        var name = new byte[len];
+        for(int i = 0; i < len; i++) {
+            name[i] = toLower(buf[i]);
+        }
+        return new DNSKey(name, len, type, rclass);
+    }
+
+    /* a scratch key for set(); never store a probe in a map */
+    public static DNSKey probe() {
+        /* room for a wildcard label in front of the longest name */
+        return new DNSKey(new byte[MAX_NAME_LENGTH + 3], 1, 0, 0);
+    }
+
+    private static byte toLower(byte b) {
+        if(b >= 'A' && b <= 'Z') {
+            return (byte)(b + ('a' - 'A'));
+        }
+        return b;
+    }
+
+    private void computeHash() {
+        int h = 31 * type + rclass;
+        int n = 0;
+        for(int i = 0; i < name_length; i++) {
+            h = 31 * h + name[i];
+            n = 31 * n + name[i];
+        }
+        hash = h;
+        name_hash = n;
+    }
+
+    /*
+     * Refill this key from the (possibly compressed) name at offset in buf, where
+     * offsets are relative to base, the start of the DNS message. Returns false if
+     * the name is malformed, runs off the end of the packet or points forwards.
+     */
+    public boolean set(ByteBuffer buf, int base, int offset, int type, int rclass) {
+        int len = 0;
+        int jumps = 0;
+        int limit = buf.limit() - base;
+
+        while(true) {
+            if(offset >= limit) {
+                return false;
+            }
+            int label_len = buf.get(base + offset) & 0xff;
+
+            if(label_len >= 192) {
+                if(offset + 1 >= limit || ++jumps > MAX_NAME_LENGTH) {
+                    return false;
+                }
+                /* pointers may only point backwards, the same rule DNSMessage parses by */
+                int target = ((label_len & 0x3f) << 8) | (buf.get(base + offset + 1) & 0xff);
+                if(target >= offset) {
+                    return false;
+                }
+                offset = target;
+                continue;
+            }
+            if(label_len > 63 || offset + label_len >= limit || len + label_len + 1 > MAX_NAME_LENGTH) {
+                return false;
+            }
+
+            name[len++] = (byte)label_len;
+            if(label_len == 0) {
+                break;
+            }
+            for(int i = 1; i <= label_len; i++) {
+                name[len++] = toLower(buf.get(base + offset + i));
+            }
+            offset += label_len + 1;
+        }
+
+        this.name_length = len;
+        this.type = type;
+        this.rclass = rclass;
+        computeHash();
+        return true;
+    }
+
+    /* refill this key with src's name minus its first skip labels, as a name-only key (type and class 0) */
+    public boolean setAncestor(DNSKey src, int skip) {
+        int offset = 0;
+        for(int i = 0; i < skip; i++) {
+            if(src.name[offset] == 0) {
+                return false;
+            }
+            offset += src.name[offset] + 1;
+        }
+        name_length = src.name_length - offset;
+        System.arraycopy(src.name, offset, name, 0, name_length);
+        type = 0;
+        rclass = 0;
+        computeHash();
+        return true;
+    }
+
+    /* refill this key with "*." in front of src's name, as a name-only key */
+    public void setWildcard(DNSKey src) {
+        name[0] = 1;
+        name[1] = '*';
+        System.arraycopy(src.name, 0, name, 2, src.name_length);
+        name_length = src.name_length + 2;
+        type = 0;
+        rclass = 0;
+        computeHash();
+    }
+
+    public int getLabelCount() {
+        int count = 0;
+        int offset = 0;
+        while(name[offset] != 0) {
+            count++;
+            offset += name[offset] + 1;
+        }
+        return count;
+    }
+
+    /* the name alone as a key (type and class 0), sharing this key's bytes; not for probes */
+    public DNSKey nameKey() {
+        return new DNSKey(name, name_length, 0, 0);
+    }
+
+    /* an immutable copy of this key's name with another type and class; fine for probes */
+    public DNSKey withType(int type, int rclass) {
+        return new DNSKey(Arrays.copyOf(name, name_length), name_length, type, rclass);
+    }
+
+    /* true if this name is zone's name or below it, compared label by label */
+    public boolean isSubdomainOf(DNSKey zone) {
+        int offset = 0;
+        while(name_length - offset > zone.name_length) {
+            offset += name[offset] + 1;
+        }
+        return name_length - offset == zone.name_length &&
+            Arrays.equals(name, offset, name_length, zone.name, 0, zone.name_length);
+    }
+
+    /* an immutable copy of a probe, safe to keep */
+    public DNSKey copy() {
+        return new DNSKey(Arrays.copyOf(name, name_length), name_length, type, rclass);
+    }
+
+    /* write the wire-format name into dst, returning its length */
+    int copyName(byte[] dst, int offset) {
+        System.arraycopy(name, 0, dst, offset, name_length);
+        return name_length;
+    }
+
+    int copyName(ByteBuffer dst, int offset) {
+        dst.put(offset, name, 0, name_length);
+        return name_length;
+    }
+
+    /* true if the length bytes at offset in buf are exactly this key's name */
+    boolean nameEquals(ByteBuffer buf, int offset, int length) {
+        if(length != name_length) {
+            return false;
+        }
+        for(int i = 0; i < length; i++) {
+            if(buf.get(offset + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getRClass() {
+        return rclass;
+    }
+
+    public int getNameLength() {
+        return name_length;
+    }
+
+    /* this object and a name array of its own */
+    public long getEstimatedSize() {
+        return 56 + name_length;
+    }
+
+    /* true if the name bytes are buf's, as for a record's key made by ofWire() */
+    boolean sharesName(byte[] buf) {
+        return name == buf;
+    }
+
+    public int getNameHash() {
+        return name_hash;
+    }
+
+    public int hashCode() {
+        return hash;
+    }
+
+    public boolean equals(Object o) {
+        if(this == o) {
+            return true;
+        }
+        if(!(o instanceof DNSKey)) {
+            return false;
+        }
+        var other = (DNSKey)o;
+        return hash == other.hash && type == other.type && rclass == other.rclass &&
+            Arrays.equals(name, 0, name_length, other.name, 0, other.name_length);
+    }
+
+    /* dotted owner name, built only for logging */
+    public String getName() {
+        var sb = new StringBuilder();
+        int i = 0;
+        while(i < name_length && name[i] != 0) {
+            int label_len = name[i];
+            if(sb.length() != 0) {
+                sb.append('.');
+            }
+            for(int j = 1; j <= label_len; j++) {
+                sb.append((char)(name[i + j] & 0xff));
+            }
+            i += label_len + 1;
+        }
+        return sb.toString();
+    }
+
+    public String toString() {
+        return String.format("%s/%d/%d", getName(), type, rclass);
+    }
+}
@@ -0,0 +1,85 @@
+package dns;
+
+/*
+ * Latency histogram with four buckets per power of two of microseconds, from 1 us
+ * to about 17 minutes, so any percentile is within 25% of the true value. With a
+ * decay limit the counts are halved whenever that many samples have come in, so
+ * percentiles follow recent behaviour instead of the whole run.
+ */
+public class DNSLatencyHistogram {
+
+    final private static int SUB_BUCKETS = 4;
+    final private static int NUM_BUCKETS = 30 * SUB_BUCKETS;
+
+    private long[] counts;
+    private long total;
+    private long decayAfter;
+
+    /* decayAfter 0 keeps every sample forever */
+    public DNSLatencyHistogram(long decayAfter) {
+        this.counts = new long[NUM_BUCKETS];
+        this.decayAfter = decayAfter;
+    }
+
+    private static int bucket(long micros) {
+        if(micros < 1) {
+            return 0;
+        }
+        int power = 63 - Long.numberOfLeadingZeros(micros);
+        /* the two bits below the leading one pick the quarter within the power of two */
+        int quarter = power < 2 ? (int)(micros << (2 - power)) & 3 : (int)(micros >> (power - 2)) & 3;
+        return Math.min(NUM_BUCKETS - 1, power * SUB_BUCKETS + quarter);
+    }
+
+    /* upper edge of a bucket in microseconds */
+    private static long bucketLimit(int bucket) {
+        int power = bucket / SUB_BUCKETS;
+        int quarter = bucket % SUB_BUCKETS;
+        return ((4L + quarter + 1) << power) >> 2;
+    }
+
+    public synchronized void record(long micros) {
+        counts[bucket(micros)]++;
+        total++;
+        if(decayAfter > 0 && total >= decayAfter) {
+            total = 0;
+            for(int i = 0; i < NUM_BUCKETS; i++) {
+                counts[i] >>= 1;
+                total += counts[i];
+            }
+        }
+    }
+
+    public synchronized long getCount() {
+        return total;
+    }
+
+    /* the latency in microseconds that a fraction p (0 to 1) of samples came in under, 0 with no samples */
+    public synchronized long percentile(double p) {
+        if(total == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(p * total);
+        long seen = 0;
+        for(int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if(seen >= rank && counts[i] > 0) {
+                return bucketLimit(i);
+            }
+        }
+        return bucketLimit(NUM_BUCKETS - 1);
+    }
+
+    /* samples whose bucket lies wholly at or below micros, so a cumulative count with the histogram's 25% precision */
+    public synchronized long countAtOrBelow(long micros) {
+        long seen = 0;
+        for(int i = 0; i < NUM_BUCKETS && bucketLimit(i) <= micros; i++) {
+            seen += counts[i];
+        }
+        return seen;
+    }
+
+    public synchronized String toString() {
+        return String.format("n=%d p50=%dus p90=%dus p99=%dus", total, percentile(0.5), percentile(0.9), percentile(0.99));
+    }
+}
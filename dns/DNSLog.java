@@ -0,0 +1,42 @@
+package dns;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Gate for the per-packet log lines. Printing every query and reply formats the
+ * whole message and has every thread take turns on System.out, which costs more
+ * than answering it, so by default only startup, reloads and failures are
+ * printed. At PACKETS one line is printed per event, for one event in
+ * sampleEvery; at MESSAGES the full message contents go with it. Call sites test
+ * packets() before building any strings, so a quiet server pays one volatile read.
+ */
+public class DNSLog {
+
+    final public static int INFO = 0;
+    final public static int PACKETS = 1;
+    final public static int MESSAGES = 2;
+
+    private static volatile int level = INFO;
+    private static volatile int sampleEvery = 1;
+
+    public static void configure(int level, int sampleEvery) {
+        DNSLog.level = level;
+        DNSLog.sampleEvery = Math.max(sampleEvery, 1);
+    }
+
+    /* true if this packet-level event should be logged: the level allows it and it is the sampled one */
+    public static boolean packets() {
+        if(level < PACKETS) {
+            return false;
+        }
+        int every = sampleEvery;
+        return every == 1 || ThreadLocalRandom.current().nextInt(every) == 0;
+    }
+
+    /* print a message's full contents when the level asks for them; only call once packets() said yes */
+    public static void message(Object message) {
+        if(level >= MESSAGES) {
+            System.out.println(message);
+        }
+    }
+}
@@ -1,15 +1,34 @@
 package dns;
 
+import java.io.ByteArrayOutputStream;
 import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 
 public class DNSMessage {
 
-    private DatagramPacket pkt;
+    /* TTL given to expired records answered in serve-stale mode (RFC 8767 section 4) */
+    final private static int STALE_TTL = 30;
+
+    /* largest reply we build, the classic UDP limit */
+    final private static int MAX_SIZE = 512;
+
+    /* most compression targets remembered per reply; later names are simply written out in full */
+    final private static int MAX_NAME_OFFSETS = 64;
+
+    /* on by default; can be turned off to interoperate with a broken client or to measure the savings */
+    private static boolean compressNames = true;
+
+    private SocketAddress source;
     private byte[] data;
     private int data_length;
 
+    /* where a reply is encoded: data wrapped for a message of our own, or a caller's buffer for encode() */
+    private ByteBuffer out;
+
     private int next_byte;
 
     private int id;
@@ -43,34 +62,155 @@ public class DNSMessage {
     }
 
     private String question_name;
+    private int question_end;
     private int question_type;
     private String question_type_str;
     private int question_class;
     private String question_class_str;
 
     private ArrayList<DNSRecord> answers;
+    private ArrayList<DNSRecord> authorities;
+    private ArrayList<DNSRecord> additionals;
+
+    /* set when the record sections ran off the end of the packet; whatever parsed before that is kept */
+    private boolean malformed;
+
+    /* answers built from our own zone keep their configured TTL, cached ones count down */
+    private boolean isAuthoritative;
+
+    /* set only while a reply to a DNSMessageView is being encoded */
+    private DNSMessageView request_view;
+
+    private DNSKey question_key;
+
+    /* where each answer's TTL ended up in data, for DNSPacketCache to patch */
+    private int[] answer_ttl_offsets;
+
+    /* label offsets already in data that a compression pointer can refer to */
+    private int[] name_offsets;
+    private int num_name_offsets;
 
     public DNSMessage(DatagramPacket pkt) {
-        this.pkt = pkt;
+        this(pkt.getData(), pkt.getLength(), pkt.getSocketAddress());
+    }
+
+    /* copies the packet out of buf, so a pooled buffer can be reused as soon as this returns */
+    public DNSMessage(ByteBuffer buf, SocketAddress source) {
+        this(copyPacket(buf), buf.remaining(), source);
+    }
+
+    private DNSMessage(byte[] data, int data_length, SocketAddress source) {
+        this.data = data;
+        this.data_length = data_length;
+        this.source = source;
         next_byte = 0;
         parseHeader();
         parseFlags();
-        parseQuestions();
         this.answers = new ArrayList<DNSRecord>();
-        parseAnswers();
+        this.authorities = new ArrayList<DNSRecord>();
+        this.additionals = new ArrayList<DNSRecord>();
+        try {
+            parseQuestions();
+            parseRecords(answers, num_answers);
+            parseRecords(authorities, num_auth_rrs);
+            parseRecords(additionals, num_additional_rrs);
+        } catch(IndexOutOfBoundsException e) {
+            malformed = true;
+        }
     }
 
     public DNSMessage(DNSMessage request, ArrayList<DNSRecord> answers, boolean isAuthoritative) {
+        this(request, answers, null, isAuthoritative);
+    }
+
+    /* authorities, such as the SOA of a negative answer, may be null */
+    public DNSMessage(DNSMessage request, ArrayList<DNSRecord> answers, ArrayList<DNSRecord> authorities, boolean isAuthoritative) {
         this.answers = answers;
+        this.authorities = authorities;
+        this.isAuthoritative = isAuthoritative;
         createHeader(request, isAuthoritative);
         createQuestions(request);
         createBuffer();
     }
 
+    /* an encoder a server loop keeps to write its replies straight into its own buffers; see encode() */
+    DNSMessage() {
+        this.name_offsets = new int[MAX_NAME_OFFSETS];
+    }
+
+    /*
+     * Encode the reply to request into out, a cleared buffer of at least MAX_SIZE
+     * bytes, with the given rcode, and leave out flipped, ready to send. Reuses
+     * this encoder's own state, so it allocates nothing; only valid on an encoder
+     * made with DNSMessage(), and nothing read from it survives the next call.
+     */
+    void encode(ByteBuffer out, DNSMessageView request, ArrayList<DNSRecord> answers, ArrayList<DNSRecord> authorities,
+                boolean isAuthoritative, int rcode) {
+        this.answers = answers;
+        this.authorities = authorities;
+        this.isAuthoritative = isAuthoritative;
+        this.request_view = request;
+        createHeader(request.getID(), request.getOpcode(), request.getRecursionDesired(), request.getQuestionCount(), isAuthoritative);
+        this.flag_rcode = rcode;
+        createFlags();
+
+        this.out = out;
+        writeMessage();
+        out.position(0).limit(data_length);
+
+        this.out = null;
+        this.answers = null;
+        this.authorities = null;
+        this.request_view = null;
+    }
+
+    public static void setNameCompression(boolean enabled) {
+        compressNames = enabled;
+    }
+
+    /* reply straight from a flyweight request: the question bytes are copied, never decoded */
+    public DNSMessage(DNSMessageView request, ArrayList<DNSRecord> answers, boolean isAuthoritative) {
+        this(request, answers, null, isAuthoritative);
+    }
+
+    public DNSMessage(DNSMessageView request, ArrayList<DNSRecord> answers, ArrayList<DNSRecord> authorities, boolean isAuthoritative) {
+        this.answers = answers;
+        this.authorities = authorities;
+        this.isAuthoritative = isAuthoritative;
+        this.request_view = request;
+        createHeader(request.getID(), request.getOpcode(), request.getRecursionDesired(), request.getQuestionCount(), isAuthoritative);
+        if(num_questions == 1) {
+            this.question_type = request.getQuestionType();
+            this.question_type_str = typeString(question_type);
+            this.question_class = request.getQuestionClass();
+            this.question_class_str = classString(question_class);
+        }
+        createBuffer();
+        this.request_view = null;
+    }
+
+    private static String typeString(int type) {
+        if(types.containsKey(type)) {
+            return types.get(type);
+        }
+        return String.format("%d", type);
+    }
+
+    private static String classString(int rclass) {
+        if(classes.containsKey(rclass)) {
+            return classes.get(rclass);
+        }
+        return String.format("%d", rclass);
+    }
+
     private void createHeader(DNSMessage request, boolean isAuthoritative) {
-        this.id = request.id;
+        createHeader(request.id, request.flag_opcode, request.flag_rd, request.num_questions, isAuthoritative);
+    }
+
+    private void createHeader(int id, int opcode, int rd, int num_questions, boolean isAuthoritative) {
+        this.id = id;
         this.flag_qr = 1;
-        this.flag_opcode = request.flag_opcode; 
+        this.flag_opcode = opcode;
         if(isAuthoritative) {
             this.flag_aa = 1;
         } else {
@@ -78,9 +218,9 @@ public class DNSMessage {
         }
 
         this.flag_tc = 0;
-        this.flag_rd = request.flag_rd;
+        this.flag_rd = rd;
         this.flag_ra = 1;
-        this.num_questions = request.num_questions;
+        this.num_questions = num_questions;
         this.num_auth_rrs = 0;
         this.num_additional_rrs = 0;
 
@@ -109,39 +249,23 @@ public class DNSMessage {
         if(num_questions != 1) {
             return;
         }
-        this.question_name = request.question_name;
+        this.question_name = request.getQuestionName();
         this.question_type = request.question_type;
         this.question_type_str = request.question_type_str;
         this.question_class = request.question_class;
         this.question_class_str = request.question_class_str;
     }
 
-    private void writeInt(int i) {
-        data[data_length] = (byte)((i & 0xff000000) >> 24);
-        data[data_length+1] = (byte)((i & 0xff0000) >> 16);
-        data[data_length+2] = (byte)((i & 0xff00) >> 8);
-        data[data_length+3] = (byte)(i & 0xff);
-        data_length += 4;
-    }
-
     private void writeShort(int s) {
-        data[data_length] = (byte)((s & 0xff00) >> 8);
-        data[data_length+1] = (byte)(s & 0xff);
+        out.putShort(data_length, (short)s);
         data_length += 2;
     }
 
     private void writeByte(int b) {
-        data[data_length] = (byte)b;
+        out.put(data_length, (byte)b);
         data_length += 1;
     }
 
-    private void writeIP(String ip) {
-        var octets = ip.split("\\.");
-        for(String octet : octets) {
-            writeByte(Integer.parseInt(octet));
-        }
-    }
-
     private void writeName(String s) {
         var labels = s.split("\\.");
         for (String label : labels) {
@@ -158,29 +282,191 @@ public class DNSMessage {
         if(num_questions != 1) {
             return; 
         }
+        if(request_view != null) {
+            data_length += request_view.copyQuestion(out, data_length);
+            return;
+        }
         writeName(question_name);
         writeShort(question_type);
         writeShort(question_class);
     }
 
+    /* the TTL a record is sent with: fixed for our own zone, counting down when it comes from the cache */
+    static int answerTTL(DNSRecord record, boolean isAuthoritative) {
+        if(isAuthoritative) {
+            return record.getTTL();
+        }
+        var ttl = record.getRemainingTTL();
+        if(ttl < 0) {
+            return STALE_TTL;
+        }
+        return ttl;
+    }
+
+    private void putInt(int offset, int i) {
+        out.putInt(offset, i);
+    }
+
+    private void putShort(int offset, int s) {
+        out.putShort(offset, (short)s);
+    }
+
+    private static byte toLower(byte b) {
+        if(b >= 'A' && b <= 'Z') {
+            return (byte)(b + ('a' - 'A'));
+        }
+        return b;
+    }
+
+    /* remember where each label of a name we just wrote starts, so later names can point at it */
+    private void rememberName(int offset) {
+        while(offset < data_length) {
+            int len = out.get(offset) & 0xff;
+            if(len == 0 || len >= 192) {
+                return;
+            }
+            if(offset < 0x4000 && num_name_offsets < name_offsets.length) {
+                name_offsets[num_name_offsets++] = offset;
+            }
+            offset += len + 1;
+        }
+    }
+
+    /* does the uncompressed name at src[src_off] match the possibly compressed name at offset in the reply? */
+    private boolean sameName(byte[] src, int src_off, int offset) {
+        while(true) {
+            int len = out.get(offset) & 0xff;
+            if(len >= 192) {
+                offset = ((len & 0x3f) << 8) | (out.get(offset+1) & 0xff);
+                continue;
+            }
+            if(len != (src[src_off] & 0xff)) {
+                return false;
+            }
+            if(len == 0) {
+                return true;
+            }
+            for(int i = 1; i <= len; i++) {
+                if(toLower(src[src_off+i]) != toLower(out.get(offset+i))) {
+                    return false;
+                }
+            }
+            src_off += len + 1;
+            offset += len + 1;
+        }
+    }
+
+    private static int nameLength(byte[] src, int src_off) {
+        int p = src_off;
+        while(src[p] != 0) {
+            p += (src[p] & 0xff) + 1;
+        }
+        return p + 1 - src_off;
+    }
+
+    /*
+     * Write the uncompressed name at src[src_off], replacing the longest suffix that
+     * is already in the message with a pointer (RFC 1035 section 4.1.4). Returns
+     * how many bytes the name takes up in src.
+     */
+    private int writeCompressedName(byte[] src, int src_off) {
+        int start = data_length;
+        int p = src_off;
+        while(src[p] != 0) {
+            if(compressNames) {
+                for(int i = 0; i < num_name_offsets; i++) {
+                    if(sameName(src, p, name_offsets[i])) {
+                        writeShort(0xc000 | name_offsets[i]);
+                        rememberName(start);
+                        return nameLength(src, src_off);
+                    }
+                }
+            }
+            int len = src[p] & 0xff;
+            out.put(data_length, src, p, len + 1);
+            data_length += len + 1;
+            p += len + 1;
+        }
+        writeByte(0);
+        rememberName(start);
+        return p + 1 - src_off;
+    }
+
+    /* copy one record's pre-encoded RR, compressing its names and patching in the TTL; returns where the TTL went */
+    private int writeRecord(DNSRecord record) {
+        var wire = record.getWire();
+        int name_length = writeCompressedName(wire, 0);
+        out.put(data_length, wire, name_length, 4);
+        data_length += 4;
+
+        int ttl_offset = data_length;
+        putInt(data_length, answerTTL(record, isAuthoritative));
+        data_length += 4;
+
+        if(record.getTypeNum() == 5) {
+            /* CNAME rdata is a name too, so it can be compressed as long as rdlength follows */
+            int rdlength_offset = data_length;
+            data_length += 2;
+            writeCompressedName(wire, name_length + 10);
+            putShort(rdlength_offset, data_length - rdlength_offset - 2);
+        } else {
+            int rest = wire.length - name_length - 8;
+            out.put(data_length, wire, name_length + 8, rest);
+            data_length += rest;
+        }
+        return ttl_offset;
+    }
+
+    /* copy each answer into the reply; set TC if they don't all fit */
     private void writeAnswer() {
+        /* an encoder keeps its array from reply to reply; it only needs to be long enough */
+        if(answer_ttl_offsets == null || answer_ttl_offsets.length < answers.size()) {
+            answer_ttl_offsets = new int[answers.size()];
+        }
+        int written = 0;
         for(var record : answers) {
-            writeName(record.getName());
-            writeShort(record.getTypeNum());
-            writeShort(record.getClassNum());
-            writeInt(record.getTTL());
-            writeShort(record.getDataLength());
-            if(record.getTypeNum() == 1) {
-                writeIP(record.getData());
-            } else {
-                writeName(record.getData());
+            /* compression only ever shrinks the RR, so the uncompressed size is a safe bound */
+            if(data_length + record.getWire().length > MAX_SIZE) {
+                flag_tc = 1;
+                break;
+            }
+            answer_ttl_offsets[written] = writeRecord(record);
+            written++;
+        }
+
+        if(written != num_answers) {
+            num_answers = written;
+            createFlags();
+            putShort(2, flags);
+            putShort(6, num_answers);
+        }
+    }
+
+    /* authority records only help the client, so the ones that don't fit are left out rather than setting TC */
+    private void writeAuthority() {
+        if(authorities == null || flag_tc == 1) {
+            return;
+        }
+        for(var record : authorities) {
+            if(data_length + record.getWire().length > MAX_SIZE) {
+                break;
             }
+            writeRecord(record);
+            num_auth_rrs++;
         }
+        putShort(8, num_auth_rrs);
     }
 
     private void createBuffer() {
-        data = new byte[512];
+        data = new byte[MAX_SIZE];
+        out = ByteBuffer.wrap(data);
+        name_offsets = new int[MAX_NAME_OFFSETS];
+        writeMessage();
+    }
+
+    private void writeMessage() {
         data_length = 0;
+        num_name_offsets = 0;
 
         writeShort(id);
         writeShort(flags);
@@ -190,7 +476,9 @@ public class DNSMessage {
         writeShort(num_additional_rrs);
 
         writeQuestion();
+        rememberName(12);
         writeAnswer();
+        writeAuthority();
     }
 
     private int bytesToShort(byte b0, byte b1) {
@@ -207,10 +495,13 @@ public class DNSMessage {
         return (i0 << 24) | (i1 << 16) | (i2 << 8) | i3;
     }
 
-    private void parseHeader() {
-        data = pkt.getData();
-        data_length = pkt.getLength();
+    private static byte[] copyPacket(ByteBuffer buf) {
+        var copy = new byte[buf.remaining()];
+        buf.duplicate().get(copy);
+        return copy;
+    }
 
+    private void parseHeader() {
         id = bytesToShort(data[0], data[1]);
         flags = bytesToShort(data[2], data[3]);
         num_questions = bytesToShort(data[4], data[5]);
@@ -243,8 +534,14 @@ public class DNSMessage {
     }
 
     private String parseCompressedName() {
+        int pointer = next_byte;
         int offset = parseShort() & 0x3fff;
 
+        /* pointers may only point backwards, which also rules out loops */
+        if(offset >= pointer) {
+            throw new IndexOutOfBoundsException("bad compression pointer");
+        }
+
         int save_next_byte = next_byte;
         next_byte = offset;
         var name = parseName();
@@ -257,13 +554,17 @@ public class DNSMessage {
         String name = "";
         int next_label_len = data[next_byte] & 0xff;
 
-        /* have to handle label compresion */
-        if(next_label_len >= 192) {
-            return parseCompressedName();
-        }
-
         while(next_label_len != 0) {
 
+            /* have to handle label compresion, which may follow any number of labels */
+            if(next_label_len >= 192) {
+                var rest = parseCompressedName();
+                if(rest.length() == 0) {
+                    return name.substring(0, Math.max(0, name.length()-1));
+                }
+                return name + rest;
+            }
+
             int i;
             for(i=next_byte+1; i <= next_byte+next_label_len; i++) {
                 name += (char)data[i];
@@ -274,7 +575,8 @@ public class DNSMessage {
             next_label_len = data[next_byte] & 0xff;
         }
 
-        name = name.substring(0, name.length()-1);
+        /* the root is the empty name */
+        name = name.substring(0, Math.max(0, name.length()-1));
         next_byte++;
         return name;
     }
@@ -301,38 +603,78 @@ public class DNSMessage {
         question_name = parseName();
         question_type = parseShort();
         question_class = parseShort(); 
+        question_end = next_byte;
+        question_type_str = typeString(question_type);
+        question_class_str = classString(question_class);
+    }
 
-        if(types.containsKey(question_type)) {
-            question_type_str = types.get(question_type);
-        } else {
-            question_type_str = String.format("%d", question_type);
+    /* append a name in uncompressed wire form to rdata, decompressing it from the packet */
+    private void parseNameInto(ByteArrayOutputStream rdata) {
+        var name = parseName();
+        if(name.length() != 0) {
+            for(var label : name.split("\\.")) {
+                rdata.write(label.length());
+                for(int i = 0; i < label.length(); i++) {
+                    rdata.write(label.charAt(i));
+                }
+            }
         }
+        rdata.write(0);
+    }
 
-        if(classes.containsKey(question_class)) {
-            question_class_str = classes.get(question_class);
+    /*
+     * The rdata of one record. Names inside NS, CNAME, PTR, MX and SOA rdata may be
+     * compressed against this packet, so they are expanded; anything else is copied.
+     */
+    private byte[] parseRData(int type, int rdlength) {
+        int end = next_byte + rdlength;
+        if(end > data_length) {
+            throw new IndexOutOfBoundsException("rdata past the end of the packet");
+        }
+        var rdata = new ByteArrayOutputStream(rdlength + 16);
+        if(type == 2 || type == 5 || type == 12) {
+            parseNameInto(rdata);
+        } else if(type == 15) {
+            rdata.write(data, next_byte, 2);
+            next_byte += 2;
+            parseNameInto(rdata);
+        } else if(type == 6) {
+            parseNameInto(rdata);
+            parseNameInto(rdata);
+            rdata.write(data, next_byte, 20);
         } else {
-            question_class_str = String.format("%d", question_class);
-        }
-    }
-
-    private void parseAnswers() {
-        for(int i = 0; i < num_answers; i++) {
-            var answer_name = parseName();
-            var answer_type = parseShort();
-            var answer_class = parseShort();
-            var answer_ttl = parseInt();
-            var answer_rdlength = parseShort();
-            String answer_data = "";
-            if(answer_type == 1) {
-                answer_data = parseIP();
-            } else {
-                answer_data = parseName();
-            }
-            var record = new DNSRecord(answer_name, answer_ttl, answer_class, answer_type, answer_data);
-            answers.add(record);
+            rdata.write(data, next_byte, rdlength);
+        }
+        next_byte = end;
+        return rdata.toByteArray();
+    }
+
+    private void parseRecords(ArrayList<DNSRecord> section, int count) {
+        for(int i = 0; i < count; i++) {
+            var record_name = parseName();
+            var record_type = parseShort();
+            var record_class = parseShort();
+            var record_ttl = parseInt();
+            var record_rdlength = parseShort();
+            var rdata = parseRData(record_type, record_rdlength);
+            section.add(new DNSRecord(record_name, record_ttl, record_class, record_type, rdata));
         }
     }
 
+    /* a query for key with RD clear, as sent to an authoritative server */
+    static byte[] buildQuery(int id, DNSKey key) {
+        var query = new byte[12 + key.getNameLength() + 4];
+        query[0] = (byte)(id >> 8);
+        query[1] = (byte)id;
+        query[5] = 1;
+        int offset = 12 + key.copyName(query, 12);
+        query[offset] = (byte)(key.getType() >> 8);
+        query[offset + 1] = (byte)key.getType();
+        query[offset + 2] = (byte)(key.getRClass() >> 8);
+        query[offset + 3] = (byte)key.getRClass();
+        return query;
+    }
+
     public String toString() {
         var sb = new StringBuilder();
         sb.append(String.format("ID: 0x%04X%n",id));
@@ -361,7 +703,7 @@ public class DNSMessage {
         sb.append(String.format("# Additional RRs: %d%n",num_additional_rrs));
         if(num_questions == 1) {
             sb.append(String.format("Questions:%n"));
-            sb.append(String.format("- %s, %s, %s%n", question_name, question_type_str, question_class_str));
+            sb.append(String.format("- %s, %s, %s%n", getQuestionName(), question_type_str, question_class_str));
         }
         if(num_answers != 0) {
             sb.append(String.format("Answers:%n"));
@@ -369,6 +711,18 @@ public class DNSMessage {
               sb.append(String.format("- %s, %s, %s, %d, %s%n", answer.getName(), answer.getTypeStr(), answer.getClassStr(), answer.getTTL(), answer.getData()));
             }
         }
+        if(authorities != null && authorities.size() != 0) {
+            sb.append(String.format("Authority:%n"));
+            for(var record : authorities) {
+              sb.append(String.format("- %s, %s, %s, %d, %s%n", record.getName(), record.getTypeStr(), record.getClassStr(), record.getTTL(), record.getData()));
+            }
+        }
+        if(additionals != null && additionals.size() != 0) {
+            sb.append(String.format("Additional:%n"));
+            for(var record : additionals) {
+              sb.append(String.format("- %s, %s, %s, %d, %s%n", record.getName(), record.getTypeStr(), record.getClassStr(), record.getTTL(), record.getData()));
+            }
+        }
         return sb.toString();
     }
 
@@ -384,9 +738,69 @@ public class DNSMessage {
     }
 
     public String getQuestionName() {
+        /* replies built from a DNSMessageView only decode the name when someone asks for it */
+        if(question_name == null && num_questions == 1) {
+            /* a question we couldn't parse has no name to give, only an empty one for the log */
+            if(malformed) {
+                return "";
+            }
+            next_byte = 12;
+            question_name = parseName();
+        }
         return question_name;
     }
 
+    public DNSKey getQuestionKey() {
+        if(question_key == null && num_questions == 1) {
+            question_key = DNSKey.of(getQuestionName(), question_type, question_class);
+        }
+        return question_key;
+    }
+
+    /*
+     * A copy of this reply, readdressed to a client whose query was answered by it:
+     * the client's own ID and RD bit, and its question bytes so the letter case it
+     * sent comes back unchanged. Only for parsed messages with a single question.
+     */
+    public byte[] replyTo(DNSMessage query) {
+        var copy = Arrays.copyOf(data, data_length);
+        copy[0] = (byte)(query.id >> 8);
+        copy[1] = (byte)query.id;
+        copy[2] = (byte)((copy[2] & 0xfe) | query.flag_rd);
+        if(query.question_end == question_end) {
+            System.arraycopy(query.data, 12, copy, 12, question_end - 12);
+        }
+        return copy;
+    }
+
+    /*
+     * An empty reply to this query with the given rcode, e.g. 2 for SERVFAIL. The
+     * question is echoed when there is exactly one we could parse; otherwise the
+     * reply is the bare 12-byte header.
+     */
+    public byte[] errorReply(int rcode) {
+        boolean echo = num_questions == 1 && question_end >= 12;
+        var reply = Arrays.copyOf(data, echo ? question_end : 12);
+        reply[2] = (byte)(0x80 | (flag_opcode << 3) | flag_rd);
+        reply[3] = (byte)(0x80 | (rcode & 0xf));
+        if(!echo) {
+            reply[4] = 0;
+            reply[5] = 0;
+        }
+        Arrays.fill(reply, 6, 12, (byte)0);
+        return reply;
+    }
+
+    /*
+     * The same empty reply with TC set, for an answer too big to go back to this
+     * client over UDP; it tells the client to ask again over TCP.
+     */
+    public byte[] truncatedReply(int rcode) {
+        var reply = errorReply(rcode);
+        reply[2] |= 0x02;
+        return reply;
+    }
+
     public String getQuestionType() {
         return question_type_str;
     }
@@ -399,6 +813,41 @@ public class DNSMessage {
         return answers;
     }
 
+    public ArrayList<DNSRecord> getAuthorities() {
+        return authorities;
+    }
+
+    public ArrayList<DNSRecord> getAdditionals() {
+        return additionals;
+    }
+
+    public boolean isAuthoritative() {
+        return flag_aa == 1;
+    }
+
+    public int getRcode() {
+        return flag_rcode;
+    }
+
+    public boolean isMalformed() {
+        return malformed;
+    }
+
+    /* change the rcode of a reply we built, e.g. NXDOMAIN at the end of a CNAME chain */
+    void setRcode(int rcode) {
+        flag_rcode = rcode;
+        createFlags();
+        putShort(2, flags);
+    }
+
+    int[] getAnswerTTLOffsets() {
+        return answer_ttl_offsets;
+    }
+
+    public boolean isTruncated() {
+        return flag_tc == 1;
+    }
+
     public byte[] getData() {
         return data;
     }
@@ -407,7 +856,7 @@ public class DNSMessage {
         return data_length;
     }
 
-    public DatagramPacket getPacket() {
-        return pkt;
+    public SocketAddress getSource() {
+        return source;
     }
 }
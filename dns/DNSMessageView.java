@@ -0,0 +1,180 @@
+package dns;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/*
+ * Flyweight over a raw DNS message in a ByteBuffer. Header fields and the question
+ * are read by offset straight out of the buffer, and the question key is filled
+ * into a reusable probe, so answering from the zone or the cache does not build a
+ * single String. One view is owned by each server loop and re-pointed at every
+ * packet with wrap(); nothing read from it may be kept after the buffer is reused.
+ */
+public class DNSMessageView {
+
+    final private static int HEADER_SIZE = 12;
+
+    private ByteBuffer buf;
+    private int base;
+    private int length;
+    private SocketAddress source;
+
+    private int question_end;
+    private boolean question_compressed;
+    private int question_type;
+    private int question_class;
+
+    private DNSKey question_key;
+    private boolean key_valid;
+
+    public DNSMessageView() {
+        question_key = DNSKey.probe();
+    }
+
+    /* point this view at the message between buf's position and limit; false if it is malformed */
+    public boolean wrap(ByteBuffer buf, SocketAddress source) {
+        this.buf = buf;
+        this.base = buf.position();
+        this.length = buf.remaining();
+        this.source = source;
+        this.key_valid = false;
+        this.question_end = HEADER_SIZE;
+        this.question_compressed = false;
+
+        if(length < HEADER_SIZE) {
+            return false;
+        }
+        if(getQuestionCount() != 1) {
+            return true;
+        }
+
+        /* find the end of the question name without decoding it */
+        int offset = HEADER_SIZE;
+        while(true) {
+            if(offset >= length) {
+                return false;
+            }
+            int label_len = buf.get(base + offset) & 0xff;
+            if(label_len == 0) {
+                offset += 1;
+                break;
+            }
+            if(label_len >= 192) {
+                question_compressed = true;
+                offset += 2;
+                break;
+            }
+            offset += label_len + 1;
+        }
+        if(offset + 4 > length) {
+            return false;
+        }
+
+        question_type = getShort(offset);
+        question_class = getShort(offset + 2);
+        question_end = offset + 4;
+        return true;
+    }
+
+    private int getShort(int offset) {
+        return ((buf.get(base + offset) & 0xff) << 8) | (buf.get(base + offset + 1) & 0xff);
+    }
+
+    public int getID() {
+        return getShort(0);
+    }
+
+    public int getFlags() {
+        return getShort(2);
+    }
+
+    public boolean isQuery() {
+        return (getFlags() >> 15 & 0x1) == 0;
+    }
+
+    public int getOpcode() {
+        return getFlags() >> 11 & 0xf;
+    }
+
+    public int getRecursionDesired() {
+        return getFlags() >> 8 & 0x1;
+    }
+
+    public int getQuestionCount() {
+        return getShort(4);
+    }
+
+    public int getQuestionType() {
+        return question_type;
+    }
+
+    public int getQuestionClass() {
+        return question_class;
+    }
+
+    public SocketAddress getSource() {
+        return source;
+    }
+
+    /* the question as a lookup key; the probe is reused, so copy() it before storing it */
+    public DNSKey getQuestionKey() {
+        if(!key_valid) {
+            if(getQuestionCount() != 1 || !question_key.set(buf, base, HEADER_SIZE, question_type, question_class)) {
+                return null;
+            }
+            key_valid = true;
+        }
+        return question_key;
+    }
+
+    /* true if the question name uses a compression pointer, so its bytes can't be copied verbatim */
+    public boolean isQuestionCompressed() {
+        return question_compressed;
+    }
+
+    /* copy the question section into a reply being built at offset in dst; returns the number of bytes written */
+    int copyQuestion(ByteBuffer dst, int offset) {
+        if(getQuestionCount() != 1) {
+            return 0;
+        }
+
+        /* a compression pointer would point into this packet, not the reply, so re-encode it */
+        if(question_compressed) {
+            var key = getQuestionKey();
+            int len = key.copyName(dst, offset);
+            dst.putShort(offset + len, (short)question_type);
+            dst.putShort(offset + len + 2, (short)question_class);
+            return len + 4;
+        }
+
+        int len = question_end - HEADER_SIZE;
+        dst.put(offset, buf, base + HEADER_SIZE, len);
+        return len;
+    }
+
+    /* a full parsed copy of the message, for the paths that need to keep it */
+    public DNSMessage toMessage() {
+        return new DNSMessage(buf.duplicate(), source);
+    }
+
+    /* only built for logging */
+    public String getQuestionName() {
+        var key = getQuestionKey();
+        if(key == null) {
+            return "";
+        }
+        return key.getName();
+    }
+
+    public String toString() {
+        var sb = new StringBuilder();
+        sb.append(String.format("ID: 0x%04X%n", getID()));
+        sb.append(String.format("Flags: 0x%04X%n", getFlags()));
+        sb.append(String.format("# Questions: %d%n", getQuestionCount()));
+        if(getQuestionCount() == 1) {
+            sb.append(String.format("Questions:%n"));
+            sb.append(String.format("- %s, %d, %d%n", getQuestionName(), question_type, question_class));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,143 @@
+package dns;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Counters for what the server answers, served as plain text in the Prometheus
+ * exposition format from http://127.0.0.1:PORT/metrics. Every reply sent to a
+ * client is counted by where it came from (our zone, the cache, or upstream,
+ * which includes the SERVFAILs we send when upstream gives up) and by rcode, on
+ * LongAdders so the packet threads never contend. Cache, in-flight and upstream
+ * figures are read from their owners only when the page is fetched.
+ */
+class DNSMetrics {
+
+    final static int ZONE = 0;
+    final static int CACHE = 1;
+    final static int UPSTREAM = 2;
+    final private static String[] SOURCES = { "zone", "cache", "upstream" };
+
+    final private static String[] RCODES = { "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED" };
+
+    /* upstream RTT histogram bucket limits in microseconds, 250 us to 5 s */
+    final private static long[] RTT_LIMITS = { 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 5000000 };
+
+    private LongAdder[] replies;
+    private long startNanos;
+
+    /* per-source totals and time at the previous fetch, for the rate since then; guarded by this */
+    private long[] lastTotals;
+    private long lastNanos;
+
+    private DNSCache cache;
+    private DNSPacketCache packetCache;
+    private DNSInFlightTable inFlight;
+    private DNSUpstreams upstreams;
+
+    DNSMetrics(DNSCache cache, DNSPacketCache packetCache, DNSInFlightTable inFlight, DNSUpstreams upstreams) {
+        this.replies = new LongAdder[SOURCES.length * 16];
+        for(int i = 0; i < replies.length; i++) {
+            replies[i] = new LongAdder();
+        }
+        this.cache = cache;
+        this.packetCache = packetCache;
+        this.inFlight = inFlight;
+        this.upstreams = upstreams;
+        this.startNanos = System.nanoTime();
+        this.lastTotals = new long[SOURCES.length];
+        this.lastNanos = startNanos;
+    }
+
+    void reply(int source, int rcode) {
+        replies[source * 16 + (rcode & 0xf)].increment();
+    }
+
+    private static String rcodeName(int rcode) {
+        return rcode < RCODES.length ? RCODES[rcode] : Integer.toString(rcode);
+    }
+
+    synchronized String render() {
+        var out = new StringBuilder();
+        long now = System.nanoTime();
+
+        out.append("# TYPE dns_replies_total counter\n");
+        var totals = new long[SOURCES.length];
+        for(int source = 0; source < SOURCES.length; source++) {
+            for(int rcode = 0; rcode < 16; rcode++) {
+                long count = replies[source * 16 + rcode].sum();
+                totals[source] += count;
+                if(count > 0) {
+                    out.append(String.format("dns_replies_total{source=\"%s\",rcode=\"%s\"} %d%n", SOURCES[source], rcodeName(rcode), count));
+                }
+            }
+        }
+
+        /* a scraper would take the rate of the counters itself; this is for a person with curl */
+        out.append("# TYPE dns_replies_per_second gauge\n");
+        double seconds = Math.max((now - lastNanos) / 1e9, 1e-3);
+        for(int source = 0; source < SOURCES.length; source++) {
+            out.append(String.format("dns_replies_per_second{source=\"%s\",window=\"since_last_fetch\"} %.1f%n",
+                SOURCES[source], (totals[source] - lastTotals[source]) / seconds));
+        }
+        lastTotals = totals;
+        lastNanos = now;
+
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+        out.append("# TYPE dns_cache_hits_total counter\n");
+        out.append(String.format("dns_cache_hits_total %d%n", hits));
+        out.append("# TYPE dns_cache_misses_total counter\n");
+        out.append(String.format("dns_cache_misses_total %d%n", misses));
+        out.append("# TYPE dns_cache_negative_hits_total counter\n");
+        out.append(String.format("dns_cache_negative_hits_total %d%n", cache.getNegativeHits()));
+        out.append("# TYPE dns_cache_stale_hits_total counter\n");
+        out.append(String.format("dns_cache_stale_hits_total %d%n", cache.getStaleHits()));
+        out.append("# TYPE dns_cache_hit_ratio gauge\n");
+        out.append(String.format("dns_cache_hit_ratio %.4f%n", hits + misses == 0 ? 0.0 : (double)hits / (hits + misses)));
+        out.append("# TYPE dns_cache_records gauge\n");
+        out.append(String.format("dns_cache_records %d%n", cache.size()));
+        out.append("# TYPE dns_cache_bytes gauge\n");
+        out.append(String.format("dns_cache_bytes %d%n", cache.getEstimatedBytes()));
+        if(packetCache != null) {
+            out.append("# TYPE dns_packet_cache_hits_total counter\n");
+            out.append(String.format("dns_packet_cache_hits_total %d%n", packetCache.getHits()));
+            out.append("# TYPE dns_packet_cache_misses_total counter\n");
+            out.append(String.format("dns_packet_cache_misses_total %d%n", packetCache.getMisses()));
+        }
+
+        out.append("# TYPE dns_in_flight gauge\n");
+        out.append(String.format("dns_in_flight %d%n", inFlight.size()));
+        out.append("# TYPE dns_upstream_queries_timed_out_total counter\n");
+        out.append(String.format("dns_upstream_queries_timed_out_total %d%n", inFlight.getTimeouts()));
+        out.append("# TYPE dns_upstream_queries_coalesced_total counter\n");
+        out.append(String.format("dns_upstream_queries_coalesced_total %d%n", inFlight.getCoalesced()));
+        out.append("# TYPE dns_upstream_replies_unmatched_total counter\n");
+        out.append(String.format("dns_upstream_replies_unmatched_total %d%n", inFlight.getUnmatched()));
+        upstreams.writeMetrics(out, RTT_LIMITS);
+
+        out.append("# TYPE dns_uptime_seconds gauge\n");
+        out.append(String.format("dns_uptime_seconds %d%n", (now - startNanos) / 1000000000L));
+        return out.toString();
+    }
+
+    /* serve render() on loopback only; the JDK's server runs it on its own thread */
+    void serve(int port) throws IOException {
+        var http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            var body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (var stream = exchange.getResponseBody()) {
+                stream.write(body);
+            }
+        });
+        http.start();
+        System.out.printf("Serving metrics on http://127.0.0.1:%d/metrics%n", port);
+    }
+}
@@ -0,0 +1,213 @@
+package dns;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Fully encoded responses keyed by question, for the hot names that make up most
+ * of the traffic. A hit copies the stored packet into the caller's send buffer
+ * and patches in the transaction ID, the RD bit, the question bytes (to keep the
+ * client's letter case) and the TTLs, instead of looking up records and encoding
+ * a new message.
+ *
+ * Split into shards by owner name like DNSCache, each an access-ordered LRU
+ * under its own lock, so a hit only touches the shard of the name asked for and
+ * a full shard gives up its least recently used packet.
+ *
+ * DNSCache invalidates the entry for a key whenever that RRset changes or goes
+ * away. A packet hit does not refresh the record's LRU position in DNSCache, so a
+ * hot RRset can still be evicted there; that invalidates the packet too, and the
+ * next query takes the slow path and touches the record again.
+ *
+ * With prefetching on, a cached packet is only served up to the point where its
+ * RRset becomes due for a prefetch, so hot names still reach DNSCache to be
+ * counted and refreshed.
+ */
+public class DNSPacketCache {
+
+    /* generation counters per shard; keys share one only when their hashes collide in it */
+    final private static int GENERATION_SLOTS = 64;
+
+    private static class Entry {
+        byte[] response;
+        DNSRecord[] records;
+        int[] ttl_offsets;
+        boolean authoritative;
+        long expiresAt;
+    }
+
+    private static class Shard {
+        /* kept in access order, so the head is the LRU victim */
+        LinkedHashMap<DNSKey,Entry> entries = new LinkedHashMap<DNSKey,Entry>(16, 0.75f, true);
+
+        /*
+         * Bumped by every invalidation of a key in the slot, so a put racing with
+         * one can tell its records may be outdated. Only that key's slot is checked,
+         * so churn on other names doesn't throw the put away.
+         */
+        long[] generations = new long[GENERATION_SLOTS];
+    }
+
+    private Shard[] shards;
+    private int shardMask;
+    private int maxShardEntries;
+
+    /* percentage of a record's TTL after which its packets are no longer served, 100 when not prefetching */
+    private int servePercent;
+
+    private LongAdder hits;
+    private LongAdder misses;
+
+    public DNSPacketCache(int maxEntries) {
+        this(maxEntries, 100);
+    }
+
+    public DNSPacketCache(int maxEntries, int servePercent) {
+        int numShards = Math.min(DNSCache.DEFAULT_SHARDS, Integer.highestOneBit(Math.max(maxEntries, 1)));
+        this.shards = new Shard[numShards];
+        this.shardMask = numShards - 1;
+        for(int i = 0; i < numShards; i++) {
+            shards[i] = new Shard();
+        }
+        this.maxShardEntries = Math.max(maxEntries / numShards, 1);
+        this.servePercent = servePercent;
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+    }
+
+    private Shard shardOf(DNSKey key) {
+        return shards[((key.getNameHash() * 0x9e3779b9) >>> 16) & shardMask];
+    }
+
+    private static int slotOf(DNSKey key) {
+        return key.hashCode() & (GENERATION_SLOTS - 1);
+    }
+
+    /*
+     * Write a ready-to-send response to this query into out, a cleared buffer
+     * big enough for any reply, and leave it flipped; false, with out untouched,
+     * if we have none.
+     */
+    public boolean lookup(DNSMessageView query, ByteBuffer out) {
+        if(query.isQuestionCompressed() || query.getOpcode() != 0) {
+            misses.increment();
+            return false;
+        }
+
+        var key = query.getQuestionKey();
+        var shard = shardOf(key);
+        Entry entry;
+        synchronized(shard) {
+            entry = shard.entries.get(key);
+            if(entry != null && entry.expiresAt < Instant.now().toEpochMilli()) {
+                shard.entries.remove(key);
+                entry = null;
+            }
+        }
+        if(entry == null) {
+            misses.increment();
+            return false;
+        }
+
+        /* an entry is never changed once stored, so it can be copied out without the lock */
+        var response = entry.response;
+        out.put(0, response, 0, response.length);
+        out.putShort(0, (short)query.getID());
+        out.put(2, (byte)((response[2] & 0xfe) | query.getRecursionDesired()));
+        query.copyQuestion(out, 12);
+
+        if(!entry.authoritative) {
+            for(int i = 0; i < entry.records.length; i++) {
+                out.putInt(entry.ttl_offsets[i], DNSMessage.answerTTL(entry.records[i], false));
+            }
+        }
+        out.position(0).limit(response.length);
+
+        hits.increment();
+        return true;
+    }
+
+    /* read for key (which may be a probe) before looking up the records a reply is built from, and hand it to put() */
+    public long getGeneration(DNSKey key) {
+        var shard = shardOf(key);
+        synchronized(shard) {
+            return shard.generations[slotOf(key)];
+        }
+    }
+
+    /*
+     * Remember a reply we just encoded, which is between response's position and
+     * limit, with where its answers' TTLs are; key must not be a probe, and a
+     * truncated reply is not worth keeping.
+     */
+    public void put(DNSKey key, ByteBuffer response, int[] ttl_offsets, ArrayList<DNSRecord> records, boolean authoritative, long lookupGeneration) {
+        var entry = new Entry();
+        entry.response = new byte[response.remaining()];
+        response.duplicate().get(entry.response);
+        entry.records = records.toArray(new DNSRecord[0]);
+        entry.ttl_offsets = Arrays.copyOf(ttl_offsets, records.size());
+        entry.authoritative = authoritative;
+        entry.expiresAt = Long.MAX_VALUE;
+        if(!authoritative) {
+            for(var record : records) {
+                long unserved = record.getTTL() * 10L * (100 - servePercent);
+                entry.expiresAt = Math.min(entry.expiresAt, record.getExpiresAt() - unserved);
+            }
+        }
+
+        var shard = shardOf(key);
+        synchronized(shard) {
+            /* the records changed while this reply was being built, so don't trust it */
+            if(shard.generations[slotOf(key)] != lookupGeneration) {
+                return;
+            }
+            shard.entries.put(key, entry);
+            if(shard.entries.size() > maxShardEntries) {
+                var it = shard.entries.values().iterator();
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    public void invalidate(DNSKey key) {
+        var shard = shardOf(key);
+        synchronized(shard) {
+            shard.generations[slotOf(key)]++;
+            shard.entries.remove(key);
+        }
+    }
+
+    public void clear() {
+        for(var shard : shards) {
+            synchronized(shard) {
+                for(int i = 0; i < GENERATION_SLOTS; i++) {
+                    shard.generations[i]++;
+                }
+                shard.entries.clear();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public String toString() {
+        int size = 0;
+        for(var shard : shards) {
+            synchronized(shard) {
+                size += shard.entries.size();
+            }
+        }
+        return String.format("Packet cache: %d entries, %d hits, %d misses", size, hits.sum(), misses.sum());
+    }
+}
@@ -1,20 +1,26 @@
 package dns;
 
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
 import java.time.Instant;
 
+/*
+ * One resource record, kept as little more than its wire form so a cache or
+ * zone of millions of them stays small: the owner, type and class are in the
+ * key, which shares the wire bytes when the owner is already lower case, and
+ * TTL and rdata are read out of the wire. The text forms (name, data, type and
+ * class strings) are decoded on demand, for logging and the zone's CNAMEs.
+ */
 public class DNSRecord {
 
-    private String name;
-    private int ttl;
-    private int class_num;
-    private String class_str;
-    private int type_num;
-    private String type_str;
-    private int data_length;
-    private String data;
-    private Instant timeStamp;
+    private DNSKey key;
+
+    /* the whole RR pre-encoded for replies: owner, type, class, TTL, rdlength and rdata */
+    private byte[] wire;
+
+    /* epoch milliseconds when the record was stored */
+    private long stored_at;
 
     private static HashMap<Integer,String> classes;
     private static HashMap<Integer,String> types;
@@ -24,107 +30,276 @@ public class DNSRecord {
 
         types = new HashMap<Integer,String>();
         types.put(1,"A");
+        types.put(2,"NS");
         types.put(5,"CNAME");
+        types.put(6,"SOA");
+        types.put(12,"PTR");
+        types.put(15,"MX");
+        types.put(16,"TXT");
+        types.put(28,"AAAA");
     }
     
-    /* TODO: add something to track when this record object was stored :)*/
-
-    private void setDataLength() {
-        if (this.type_num == 1) {
-            this.data_length = 4;
-        } else if (this.type_num == 5) {
-            this.data_length = data.length() + 1;
-        } else {
-            System.out.println("This server only handles A and CNAME records.");
+    private static int encodeName(String s, byte[] buf, int offset) {
+        if(s.length() != 0 && !s.equals(".")) {
+            for(var label : s.split("\\.")) {
+                buf[offset++] = (byte)label.length();
+                for(int i = 0; i < label.length(); i++) {
+                    buf[offset++] = (byte)label.charAt(i);
+                }
+            }
+        }
+        buf[offset++] = 0;
+        return offset;
+    }
+
+    /* types whose rdata is a single domain name, kept in data as the dotted name */
+    private static boolean isNameType(int type_num) {
+        return type_num == 2 || type_num == 5 || type_num == 12;
+    }
+
+    /* rdata in wire form from data: an address, a name, or the RFC 3597 generic form "\# length hex" */
+    private static byte[] encodeData(int type_num, String data) {
+        if(type_num == 1) {
+            var rdata = new byte[4];
+            var octets = data.split("\\.");
+            for(int i = 0; i < 4; i++) {
+                rdata[i] = (byte)Integer.parseInt(octets[i]);
+            }
+            return rdata;
+        }
+        if(isNameType(type_num)) {
+            var rdata = new byte[data.length() + 2];
+            return Arrays.copyOf(rdata, encodeName(data, rdata, 0));
+        }
+        var tokens = data.trim().split("\\s+");
+        if(!tokens[0].equals("\\#") || tokens.length < 2) {
+            System.out.println("Records of type " + typeName(type_num) + " need their data in the generic \\# form.");
             System.exit(0);
         }
+        var hex = String.join("", Arrays.copyOfRange(tokens, 2, tokens.length));
+        var rdata = new byte[Integer.parseInt(tokens[1])];
+        for(int i = 0; i < rdata.length; i++) {
+            rdata[i] = (byte)Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return rdata;
     }
 
-    private Instant getCurrentTime() {
-      return Instant.now();
+    /* the text form of rdata that encodeData() turns back into the same bytes */
+    private static String decodeData(int type_num, byte[] buf, int offset, int length) {
+        if(type_num == 1 && length == 4) {
+            return (buf[offset] & 0xff) + "." + (buf[offset + 1] & 0xff) + "." + (buf[offset + 2] & 0xff) + "." + (buf[offset + 3] & 0xff);
+        }
+        if(isNameType(type_num)) {
+            return decodeName(buf, offset);
+        }
+        var sb = new StringBuilder("\\# ").append(length);
+        if(length != 0) {
+            sb.append(' ');
+        }
+        for(int i = 0; i < length; i++) {
+            sb.append(String.format("%02x", buf[offset + i] & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /* the record never changes once built, so encode it once instead of on every reply */
+    private void encodeWire(String name, int ttl, int class_num, int type_num, byte[] rdata) {
+        var buf = new byte[name.length() + 2 + 10 + rdata.length];
+        int offset = encodeName(name, buf, 0);
+        buf[offset++] = (byte)(type_num >> 8);
+        buf[offset++] = (byte)type_num;
+        buf[offset++] = (byte)(class_num >> 8);
+        buf[offset++] = (byte)class_num;
+        buf[offset++] = (byte)(ttl >> 24);
+        buf[offset++] = (byte)(ttl >> 16);
+        buf[offset++] = (byte)(ttl >> 8);
+        buf[offset++] = (byte)ttl;
+        buf[offset++] = (byte)(rdata.length >> 8);
+        buf[offset++] = (byte)rdata.length;
+        System.arraycopy(rdata, 0, buf, offset, rdata.length);
+        offset += rdata.length;
+
+        wire = offset == buf.length ? buf : Arrays.copyOf(buf, offset);
+        key = DNSKey.ofWire(wire, type_num, class_num);
+    }
+
+    private static long getCurrentTime() {
+      return Instant.now().toEpochMilli();
+    }
+
+    private static String className(int class_num) {
+        return classes.getOrDefault(class_num, String.format("%d", class_num));
+    }
+
+    private static String typeName(int type_num) {
+        return types.getOrDefault(type_num, String.format("%d", type_num));
     }
 
     public DNSRecord(String name, int ttl, String class_str, String type_str, String data) {
-        this.name = name;
-        this.ttl = ttl;
-        this.class_str = class_str;
-        this.type_str = type_str;
-        this.data = data;
-        this.timeStamp = getCurrentTime();
-
-        this.class_num = 0;
+        int class_num = 0;
         for (Map.Entry<Integer, String> entry : classes.entrySet()) {
             if(entry.getValue().equals(class_str)) {
-                this.class_num = entry.getKey();
+                class_num = entry.getKey();
             }
         }
 
-        this.type_num = 0;
+        int type_num = 0;
         for (Map.Entry<Integer, String> entry : types.entrySet()) {
             if(entry.getValue().equals(type_str)) {
-                this.type_num = entry.getKey();
+                type_num = entry.getKey();
             }
         }
 
-        setDataLength();
+        this.stored_at = getCurrentTime();
+        encodeWire(name, ttl, class_num, type_num, encodeData(type_num, data));
     }
 
     public DNSRecord(String name, int ttl, int class_num, int type_num, String data) {
-        this.name = name;
-        this.ttl = ttl;
-        this.class_num = class_num;
-        this.type_num = type_num;
-        this.data = data;
-        this.timeStamp = getCurrentTime();
-
-        if(classes.containsKey(class_num)) {
-            class_str = classes.get(class_num);
-        } else {
-            class_str = String.format("%d", class_num);
+        this.stored_at = getCurrentTime();
+        encodeWire(name, ttl, class_num, type_num, encodeData(type_num, data));
+    }
+
+    /* a record read off the wire, with any names inside rdata already uncompressed */
+    public DNSRecord(String name, int ttl, int class_num, int type_num, byte[] rdata) {
+        this.stored_at = getCurrentTime();
+        encodeWire(name, ttl, class_num, type_num, rdata);
+    }
+
+    /* dotted name starting at offset in an uncompressed wire-format buffer */
+    private static String decodeName(byte[] buf, int offset) {
+        var sb = new StringBuilder();
+        while(buf[offset] != 0) {
+            int label_len = buf[offset];
+            if(sb.length() != 0) {
+                sb.append('.');
+            }
+            for(int i = 1; i <= label_len; i++) {
+                sb.append((char)(buf[offset + i] & 0xff));
+            }
+            offset += label_len + 1;
         }
+        return sb.toString();
+    }
 
-        if(types.containsKey(type_num)) {
-            type_str = types.get(type_num);
-        } else {
-            type_str = String.format("%d", type_num);
+    /* a record rebuilt from a wire RR written by getWire(), as stored in a compiled zone image */
+    DNSRecord(byte[] wire) {
+        this(wire, getCurrentTime());
+    }
+
+    /* the same, keeping the time it was first stored so the TTL keeps counting down, as in a cache snapshot */
+    DNSRecord(byte[] wire, long stored_at) {
+        int offset = 0;
+        while(wire[offset] != 0) {
+            offset += wire[offset] + 1;
         }
+        offset++;
+        int type_num = ((wire[offset] & 0xff) << 8) | (wire[offset + 1] & 0xff);
+        int class_num = ((wire[offset + 2] & 0xff) << 8) | (wire[offset + 3] & 0xff);
+
+        this.wire = wire;
+        this.stored_at = stored_at;
+        this.key = DNSKey.ofWire(wire, type_num, class_num);
+    }
 
-        setDataLength();
+    /* where rdlength sits in the wire, right after the owner, type, class and TTL */
+    private int rdataOffset() {
+        return key.getNameLength() + 10;
     }
 
     public String getName() {
-        return name;
+        return decodeName(wire, 0);
     }
 
     public int getTTL() {
-        return ttl;
+        int offset = getWireTTLOffset();
+        return ((wire[offset] & 0xff) << 24) | ((wire[offset + 1] & 0xff) << 16) | ((wire[offset + 2] & 0xff) << 8) | (wire[offset + 3] & 0xff);
     }
 
     public int getClassNum() {
-        return class_num;
+        return key.getRClass();
     }
 
     public String getClassStr() {
-        return class_str;
+        return className(key.getRClass());
     }
 
     public int getTypeNum() {
-        return type_num;
+        return key.getType();
     }
 
     public String getTypeStr() {
-        return type_str;
+        return typeName(key.getType());
     }
 
     public int getDataLength() {
-        return data_length;
+        return wire.length - rdataOffset();
     }
 
+    /* decoded on every call, so keep it off hot paths */
     public String getData() {
-        return data;
+        return decodeData(key.getType(), wire, rdataOffset(), getDataLength());
+    }
+
+    /* (name, type, class) in wire form, shared by the zone and cache indexes */
+    public DNSKey getKey() {
+        return key;
+    }
+
+    public byte[] getWire() {
+        return wire;
+    }
+
+    /* where the TTL sits in getWire(), so a reply can patch in the remaining TTL */
+    public int getWireTTLOffset() {
+        return key.getNameLength() + 4;
     }
 
     public Instant getTimeStamp(){
-      return timeStamp;
+      return Instant.ofEpochMilli(stored_at);
+    }
+
+    public long getStoredAt() {
+        return stored_at;
+    }
+
+    /* approximate heap footprint: this object, its wire bytes and its key, which may share them */
+    public long getEstimatedSize() {
+        long size = 32 + 16 + wire.length;
+        if(key.sharesName(wire)) {
+            return size + 40;
+        }
+        return size + key.getEstimatedSize();
+    }
+
+    /* TTL left since the record was stored, negative once it has expired */
+    public int getRemainingTTL() {
+        long age = (getCurrentTime() - stored_at) / 1000;
+        return (int)Math.max(getTTL() - age, Integer.MIN_VALUE);
+    }
+
+    /* the MINIMUM field of an SOA record, the last four bytes of its rdata; negative answers are cached for at most this long */
+    int getSOAMinimum() {
+        int end = wire.length;
+        return ((wire[end - 4] & 0xff) << 24) | ((wire[end - 3] & 0xff) << 16) | ((wire[end - 2] & 0xff) << 8) | (wire[end - 1] & 0xff);
+    }
+
+    /* a copy of this record with another TTL, stored at the same time */
+    DNSRecord withTTL(int ttl) {
+        var copy = Arrays.copyOf(wire, wire.length);
+        int offset = getWireTTLOffset();
+        copy[offset] = (byte)(ttl >> 24);
+        copy[offset + 1] = (byte)(ttl >> 16);
+        copy[offset + 2] = (byte)(ttl >> 8);
+        copy[offset + 3] = (byte)ttl;
+        return new DNSRecord(copy, stored_at);
+    }
+
+    public Instant getExpiration() {
+        return Instant.ofEpochMilli(getExpiresAt());
+    }
+
+    /* getExpiration() in epoch milliseconds, without allocating */
+    public long getExpiresAt() {
+        return stored_at + getTTL() * 1000L;
     }
 }
@@ -0,0 +1,508 @@
+package dns;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/*
+ * Iterative resolution from the root hints, for running without a resolver to
+ * forward to. Each miss becomes a Task that asks authoritative servers with RD
+ * clear. It starts at the deepest zone cut whose NS records and addresses are in
+ * the cache, and from there follows referrals down the tree and CNAMEs across it.
+ * Referrals and glue are cached like any other answer, so the next name under a
+ * zone we have seen goes straight to that zone's servers.
+ *
+ * Only records at or below the zone a server was asked about are believed (the
+ * bailiwick rule), so a server can't plant records for zones it doesn't serve. A
+ * nameserver referred to without glue is resolved as a nested goal of the same
+ * task. MAX_QUERIES, MAX_CNAME_CHAIN and MAX_GOALS bound every task, so a loop of
+ * referrals or aliases ends in SERVFAIL instead of going on forever.
+ *
+ * A task travels with its DNSInFlightTable query and is only touched by the thread
+ * that holds that query, so it needs no locking of its own.
+ */
+class DNSResolver {
+
+    final private static int TYPE_A = 1;
+    final private static int TYPE_NS = 2;
+    final private static int TYPE_CNAME = 5;
+    final private static int TYPE_SOA = 6;
+    final private static int TYPE_AAAA = 28;
+    final private static int CLASS_IN = 1;
+
+    final private static int NOERROR = 0;
+    final private static int SERVFAIL = 2;
+    final private static int NXDOMAIN = 3;
+
+    /* queries one client question may cost in all, nameserver lookups and retries included */
+    final private static int MAX_QUERIES = 32;
+    final private static int MAX_CNAME_CHAIN = 8;
+    /* the client's question plus nested lookups of glueless nameservers */
+    final private static int MAX_GOALS = 4;
+
+    /* IPv4 addresses of the root servers, a to m */
+    final private static String[] ROOT_SERVERS = {
+        "198.41.0.4", "170.247.170.2", "192.33.4.12", "199.7.91.13", "192.203.230.10", "192.5.5.241", "192.112.36.4",
+        "198.97.190.53", "192.36.148.17", "192.58.128.30", "193.0.14.129", "199.7.83.42", "202.12.27.33"
+    };
+
+    /* one name being resolved: the client's question, or the address of a nameserver it needs */
+    private static class Goal {
+        DNSKey question;
+        ArrayList<DNSRecord> chain;
+
+        /* the zone the servers below were found for, as a name-only key */
+        DNSKey zone;
+        ArrayList<InetSocketAddress> servers;
+        int next_server;
+        /* the zone's nameservers we don't have an address for yet */
+        ArrayList<DNSKey> unresolved;
+
+        boolean done;
+        int rcode;
+        ArrayList<DNSRecord> records;
+        /* the SOA that a negative answer came with */
+        ArrayList<DNSRecord> authority;
+    }
+
+    static class Task {
+        private ArrayDeque<Goal> goals;
+        private int queries;
+        private InetSocketAddress server;
+
+        private boolean done;
+        private int rcode;
+        private ArrayList<DNSRecord> answers;
+        private ArrayList<DNSRecord> authority;
+
+        private Task() {
+            goals = new ArrayDeque<Goal>();
+        }
+
+        /* what to ask next, and where; only meaningful while the task is not done */
+        DNSKey getQuestion() {
+            return goals.peek().question;
+        }
+
+        InetSocketAddress getServer() {
+            return server;
+        }
+
+        boolean isDone() {
+            return done;
+        }
+
+        /* the answer once done: NOERROR with the CNAME chain and records (empty for NODATA), NXDOMAIN or SERVFAIL */
+        int getRcode() {
+            return rcode;
+        }
+
+        ArrayList<DNSRecord> getAnswers() {
+            return answers;
+        }
+
+        /* the zone's SOA for a negative answer, otherwise empty */
+        ArrayList<DNSRecord> getAuthority() {
+            return authority;
+        }
+
+        int getQueries() {
+            return queries;
+        }
+    }
+
+    private DNSCache cache;
+    private ArrayList<InetSocketAddress> rootHints;
+    private DNSKey root;
+    /* port every nameserver below the root is asked on; only a local test setup changes it from 53 */
+    private int serverPort;
+
+    DNSResolver(DNSCache cache, ArrayList<InetSocketAddress> rootHints, int serverPort) {
+        this.cache = cache;
+        this.rootHints = rootHints;
+        this.root = DNSKey.of("", 0, 0);
+        this.serverPort = serverPort;
+    }
+
+    static ArrayList<InetSocketAddress> defaultRootHints() {
+        var hints = new ArrayList<InetSocketAddress>();
+        for(var address : ROOT_SERVERS) {
+            hints.add(new InetSocketAddress(address, 53));
+        }
+        return hints;
+    }
+
+    /*
+     * Root server addresses from a hints file in the usual named.root format: the
+     * last field of every A record line, which may carry a :port, else port is
+     * used. NS and AAAA lines and ; comments are skipped.
+     */
+    static ArrayList<InetSocketAddress> loadRootHints(String file_name, int port) throws IOException {
+        var hints = new ArrayList<InetSocketAddress>();
+        try (var reader = new BufferedReader(new FileReader(file_name))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                var tokens = line.trim().split("\\s+");
+                if(tokens.length < 2 || tokens[0].startsWith(";") || !tokens[tokens.length - 2].equalsIgnoreCase("A")) {
+                    continue;
+                }
+                try {
+                    hints.addAll(DNSUpstreams.parse(tokens[tokens.length - 1], port));
+                } catch(IllegalArgumentException e) {
+                    throw new IOException("bad root server address " + tokens[tokens.length - 1]);
+                }
+            }
+        }
+        if(hints.isEmpty()) {
+            throw new IOException("no root server addresses in " + file_name);
+        }
+        return hints;
+    }
+
+    /* begin resolving question (which may be a probe); the task is either done already from the cache or has a first query to send */
+    Task start(DNSKey question) {
+        return start(question, false);
+    }
+
+    /* a refresh skips what the cache already holds for the question itself and goes straight to its servers */
+    Task start(DNSKey question, boolean refresh) {
+        var task = new Task();
+        task.goals.push(newGoal(question.withType(question.getType(), question.getRClass()), refresh));
+        advance(task);
+        return task;
+    }
+
+    /* the server we asked didn't answer, so move on to the next one */
+    void handleTimeout(Task task) {
+        advance(task);
+    }
+
+    void handleReply(Task task, DNSMessage reply) {
+        var goal = task.goals.peek();
+        int rcode = reply.getRcode();
+
+        /* a broken or refusing server, or a reply cut short that we would need TCP for: try another */
+        if(reply.isMalformed() || reply.isTruncated() || (rcode != NOERROR && rcode != NXDOMAIN)) {
+            advance(task);
+            return;
+        }
+
+        var answers = new ArrayList<DNSRecord>();
+        var referral = new ArrayList<DNSRecord>();
+        var glue = new ArrayList<DNSRecord>();
+        for(var record : reply.getAnswers()) {
+            if(inBailiwick(record, goal)) {
+                answers.add(record);
+            }
+        }
+        for(var record : reply.getAuthorities()) {
+            if(record.getTypeNum() == TYPE_NS && inBailiwick(record, goal)) {
+                referral.add(record);
+            }
+        }
+        for(var record : reply.getAdditionals()) {
+            if((record.getTypeNum() == TYPE_A || record.getTypeNum() == TYPE_AAAA) && inBailiwick(record, goal)) {
+                glue.add(record);
+            }
+        }
+        var learned = new ArrayList<DNSRecord>(answers);
+        learned.addAll(referral);
+        learned.addAll(glue);
+        cache.addEntries(learned);
+
+        /* follow the answer from the question through any CNAMEs the server gave along with it */
+        boolean aliased = false;
+        while(true) {
+            var records = matching(answers, goal.question);
+            if(records.size() != 0) {
+                finish(goal, NOERROR, records);
+                advance(task);
+                return;
+            }
+            var cname = goal.question.getType() == TYPE_CNAME ? null : firstMatching(answers, goal.question.withType(TYPE_CNAME, CLASS_IN));
+            if(cname == null) {
+                break;
+            }
+            if(!follow(goal, cname)) {
+                advance(task);
+                return;
+            }
+            aliased = true;
+        }
+
+        /* only an authoritative server can say a name doesn't exist, and only for a name in its zone */
+        if(rcode == NXDOMAIN && reply.isAuthoritative() && goal.question.isSubdomainOf(goal.zone)) {
+            finishNegative(goal, NXDOMAIN, reply);
+            advance(task);
+            return;
+        }
+
+        if(aliased) {
+            /* the alias points somewhere this server isn't authoritative for, so start over from there */
+            restart(goal);
+            advance(task);
+            return;
+        }
+
+        if(rcode == NXDOMAIN) {
+            advance(task);
+            return;
+        }
+
+        if(referral.size() != 0) {
+            var zone = referral.get(0).getKey().nameKey();
+            if(!zone.equals(goal.zone) && zone.isSubdomainOf(goal.zone) && goal.question.isSubdomainOf(zone)) {
+                var ns = new ArrayList<DNSRecord>();
+                for(var record : referral) {
+                    if(record.getKey().nameKey().equals(zone)) {
+                        ns.add(record);
+                    }
+                }
+                var servers = new ArrayList<InetSocketAddress>();
+                var unresolved = new ArrayList<DNSKey>();
+                addresses(ns, glue, servers, unresolved);
+                setServers(goal, zone, servers, unresolved);
+            }
+            /* otherwise a lame referral sideways or back up the tree, so try another server */
+            advance(task);
+            return;
+        }
+
+        /* no answer and no referral: the name exists without this type, if the server is authoritative */
+        if(reply.isAuthoritative()) {
+            finishNegative(goal, NOERROR, reply);
+        }
+        advance(task);
+    }
+
+    /* end the goal with NXDOMAIN or NODATA, caching that for as long as the zone's SOA allows (RFC 2308) */
+    private void finishNegative(Goal goal, int rcode, DNSMessage reply) {
+        finish(goal, rcode, null);
+        for(var record : reply.getAuthorities()) {
+            if(record.getTypeNum() == TYPE_SOA && inBailiwick(record, goal)) {
+                cache.addNegative(goal.question, rcode, record);
+                goal.authority.add(record);
+                break;
+            }
+        }
+    }
+
+    private static boolean inBailiwick(DNSRecord record, Goal goal) {
+        return record.getClassNum() == CLASS_IN && record.getKey().isSubdomainOf(goal.zone);
+    }
+
+    private static ArrayList<DNSRecord> matching(ArrayList<DNSRecord> records, DNSKey key) {
+        var found = new ArrayList<DNSRecord>();
+        for(var record : records) {
+            if(record.getKey().equals(key)) {
+                found.add(record);
+            }
+        }
+        return found;
+    }
+
+    private static DNSRecord firstMatching(ArrayList<DNSRecord> records, DNSKey key) {
+        for(var record : records) {
+            if(record.getKey().equals(key)) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    private Goal newGoal(DNSKey question) {
+        return newGoal(question, false);
+    }
+
+    private Goal newGoal(DNSKey question, boolean refresh) {
+        var goal = new Goal();
+        goal.question = question;
+        goal.chain = new ArrayList<DNSRecord>();
+        restart(goal, refresh);
+        return goal;
+    }
+
+    private static void finish(Goal goal, int rcode, ArrayList<DNSRecord> records) {
+        goal.done = true;
+        goal.rcode = rcode;
+        goal.records = records == null ? new ArrayList<DNSRecord>() : records;
+        goal.authority = new ArrayList<DNSRecord>();
+    }
+
+    /* add an alias to the goal's chain and move its question to the target; false, with the goal failed, once the chain is too long */
+    private static boolean follow(Goal goal, DNSRecord cname) {
+        if(goal.chain.size() >= MAX_CNAME_CHAIN) {
+            finish(goal, SERVFAIL, null);
+            return false;
+        }
+        goal.chain.add(cname);
+        goal.question = DNSKey.of(cname.getData(), goal.question.getType(), goal.question.getRClass());
+        return true;
+    }
+
+    private void restart(Goal goal) {
+        restart(goal, false);
+    }
+
+    /*
+     * Answer the goal from the cache, following cached CNAMEs, or else point it at
+     * the closest zone cut we know servers for. A refresh only does the latter.
+     */
+    private void restart(Goal goal, boolean refresh) {
+        while(!refresh) {
+            var records = cache.peekRecords(goal.question);
+            if(records.size() != 0) {
+                finish(goal, NOERROR, records);
+                return;
+            }
+            var authority = new ArrayList<DNSRecord>();
+            int rcode = cache.returnNegative(goal.question, authority);
+            if(rcode >= 0) {
+                finish(goal, rcode, null);
+                goal.authority = authority;
+                return;
+            }
+            if(goal.question.getType() == TYPE_CNAME) {
+                break;
+            }
+            var alias = cache.peekRecords(goal.question.withType(TYPE_CNAME, CLASS_IN));
+            if(alias.size() == 0) {
+                break;
+            }
+            if(!follow(goal, alias.get(0))) {
+                return;
+            }
+        }
+
+        var probe = DNSKey.probe();
+        int labels = goal.question.getLabelCount();
+        for(int skip = 0; skip < labels; skip++) {
+            probe.setAncestor(goal.question, skip);
+            var ns = cache.peekRecords(probe.withType(TYPE_NS, CLASS_IN));
+            if(ns.size() == 0) {
+                continue;
+            }
+            var servers = new ArrayList<InetSocketAddress>();
+            var unresolved = new ArrayList<DNSKey>();
+            addresses(ns, null, servers, unresolved);
+            if(servers.size() != 0) {
+                setServers(goal, probe.copy(), servers, unresolved);
+                return;
+            }
+        }
+        setServers(goal, root, new ArrayList<InetSocketAddress>(rootHints), new ArrayList<DNSKey>());
+    }
+
+    private static void setServers(Goal goal, DNSKey zone, ArrayList<InetSocketAddress> servers, ArrayList<DNSKey> unresolved) {
+        /* spread the load over a zone's servers rather than always starting with the first */
+        Collections.shuffle(servers);
+        goal.zone = zone;
+        goal.servers = servers;
+        goal.next_server = 0;
+        goal.unresolved = unresolved;
+    }
+
+    /*
+     * The server at an A record's address, built from the rdata bytes so no
+     * hostname lookup can happen; null unless the rdata is exactly four bytes.
+     */
+    private InetSocketAddress serverAt(DNSRecord record) {
+        if(record.getTypeNum() != TYPE_A || record.getDataLength() != 4) {
+            return null;
+        }
+        var wire = record.getWire();
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(Arrays.copyOfRange(wire, wire.length - 4, wire.length)), serverPort);
+        } catch(UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /* addresses of each nameserver, from glue in the referral or else the cache; the ones with neither go in unresolved */
+    private void addresses(ArrayList<DNSRecord> ns, ArrayList<DNSRecord> glue, ArrayList<InetSocketAddress> servers, ArrayList<DNSKey> unresolved) {
+        for(var record : ns) {
+            var name = DNSKey.of(record.getData(), TYPE_A, CLASS_IN);
+            var found = glue == null ? new ArrayList<DNSRecord>() : matching(glue, name);
+            if(found.size() == 0) {
+                found = cache.peekRecords(name);
+            }
+            int added = 0;
+            for(var address : found) {
+                var server = serverAt(address);
+                if(server != null) {
+                    servers.add(server);
+                    added++;
+                }
+            }
+            if(added == 0) {
+                unresolved.add(name);
+            }
+        }
+    }
+
+    /*
+     * Decide the task's next query, finishing goals as they complete. When a goal
+     * runs out of servers it looks up the address of a glueless nameserver as a
+     * nested goal; when it has nothing left at all it fails.
+     */
+    private void advance(Task task) {
+        while(true) {
+            var goal = task.goals.peek();
+            if(goal.done) {
+                task.goals.pop();
+                var parent = task.goals.peek();
+                if(parent == null) {
+                    task.done = true;
+                    task.rcode = goal.rcode;
+                    task.answers = new ArrayList<DNSRecord>();
+                    task.authority = goal.authority;
+                    if(goal.rcode != SERVFAIL) {
+                        task.answers.addAll(goal.chain);
+                        task.answers.addAll(goal.records);
+                    }
+                    return;
+                }
+                if(goal.rcode == NOERROR) {
+                    for(var record : goal.records) {
+                        var server = serverAt(record);
+                        if(server != null) {
+                            parent.servers.add(server);
+                        }
+                    }
+                }
+                continue;
+            }
+
+            if(goal.next_server < goal.servers.size()) {
+                if(task.queries >= MAX_QUERIES) {
+                    task.done = true;
+                    task.rcode = SERVFAIL;
+                    task.answers = new ArrayList<DNSRecord>();
+                    task.authority = new ArrayList<DNSRecord>();
+                    return;
+                }
+                task.queries++;
+                task.server = goal.servers.get(goal.next_server++);
+                return;
+            }
+
+            if(goal.unresolved.size() != 0 && task.goals.size() < MAX_GOALS) {
+                var ns = goal.unresolved.remove(0);
+                /* a nameserver inside the zone it serves can only be reached through glue */
+                if(!ns.isSubdomainOf(goal.zone)) {
+                    task.goals.push(newGoal(ns));
+                }
+                continue;
+            }
+
+            finish(goal, SERVFAIL, null);
+        }
+    }
+}
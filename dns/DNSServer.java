@@ -1,161 +1,878 @@
 package dns;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.HashMap;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 
 import dns.DNSMessage;
 
 public class DNSServer {
     
-    final private int PORT = 53;
     final private int MAX_SIZE = 512;
 
-    private DNSZone zone;
-    /* TODO: add class variable for the cache :)*/
+    /* receive buffers take any UDP payload, since an upstream may send more than MAX_SIZE */
+    final private int MAX_RECEIVE = 65535;
+
+    /* most expired cache entries swept per packet; anything left over is caught on read */
+    final private int EXPIRY_BATCH = 8;
+
+    /* attempts per upstream query, including the first, before the waiting clients get SERVFAIL */
+    final private int MAX_TRIES = 2;
+
+    /* how often an idle server loop wakes up to hedge and time out upstream queries */
+    final private int TIMER_MILLIS = 20;
+
+    /* direct buffers kept per NIO event loop */
+    final private int BUFFER_POOL_SIZE = 64;
+
+    /* the empty answer section of a negative reply; never modified */
+    final private static ArrayList<DNSRecord> NO_RECORDS = new ArrayList<DNSRecord>(0);
+
+    /* replaced whole by reloadZone(), so a query sees either the old zone or the new one, never a mix */
+    private volatile DNSZone zone;
+    private String zoneFile;
+    private String[] zoneApexes;
+    private int zoneReloadSeconds;
+
+    /* records learned upstream, shared by every server thread */
     private DNSCache cache;
-    private HashMap<Integer,DNSMessage> outstandingQueries;
 
+    /* optional fast path of fully encoded responses, null when disabled */
+    private DNSPacketCache packetCache;
+    /* upstream queries waiting for a reply, one per distinct question; clients asking it meanwhile wait on the same reply */
+    private DNSInFlightTable inFlight;
 
-    private InetAddress nextServer;
-    private int nextServerPort;
+    /* cache snapshot file for warm restarts, null if disabled */
+    private String cacheSnapshot;
+    private int snapshotSeconds;
 
-    public DNSServer(DNSZone zone) {
+    /* port we answer clients on */
+    private int port;
+
+    private int numThreads;
+    private boolean useNio;
+
+    /* where misses are forwarded, each with its own RTT and health */
+    private DNSUpstreams upstreams;
+
+    /* resolves misses from the root instead of forwarding them, null in forwarding mode */
+    private DNSResolver resolver;
+
+    /* replies by source and rcode, and the page that serves them with everyone else's counters */
+    private DNSMetrics metrics;
+    private int metricsPort;
+
+    public DNSServer(DNSZone zone, DNSConfig config) {
         this.zone = zone;
-        this.outstandingQueries = new HashMap<Integer,DNSMessage>();
-        this.cache = new DNSCache();
+        this.zoneFile = config.getZoneFile();
+        this.zoneApexes = config.getZoneApexes();
+        this.zoneReloadSeconds = config.getZoneReloadSeconds();
+        this.upstreams = new DNSUpstreams(config.getUpstreams(), config.getHedgePercentile());
+        this.inFlight = new DNSInFlightTable(config.getUpstreamTimeout(), upstreams);
+        this.cacheSnapshot = config.getCacheSnapshot();
+        this.snapshotSeconds = config.getSnapshotSeconds();
+        this.port = config.getPort();
+        this.numThreads = config.getThreads();
+        this.useNio = config.useNio();
+        this.metricsPort = config.getMetricsPort();
+        DNSLog.configure(config.getLogLevel(), config.getLogSample());
+        DNSMessage.setNameCompression(config.useCompression());
+        this.cache = new DNSCache(config.getCacheMaxEntries(), config.getCacheMaxBytes(), config.getMaxStaleSeconds(), config.getCacheShards());
+        this.cache.setPrefetchRate(config.getPrefetchRate());
+
+        if(config.getPacketCacheEntries() > 0) {
+            this.packetCache = new DNSPacketCache(config.getPacketCacheEntries(),
+                config.getPrefetchRate() > 0 ? DNSCache.PREFETCH_PERCENT : 100);
+            this.cache.setPacketCache(packetCache);
+        }
 
+        if(config.isRecursive()) {
+            var rootHints = DNSResolver.defaultRootHints();
+            if(config.getRootHints() != null) {
+                try {
+                    rootHints = DNSResolver.loadRootHints(config.getRootHints(), config.getServerPort());
+                } catch(IOException e) {
+                    System.out.println("Error reading root hints: " + e.getMessage());
+                    System.exit(0);
+                }
+            }
+            this.resolver = new DNSResolver(cache, rootHints, config.getServerPort());
+            System.out.printf("Resolving recursively from %d root server(s)%n", rootHints.size());
+        }
+
+        this.metrics = new DNSMetrics(cache, packetCache, inFlight, upstreams);
+
+        System.out.printf("Starting server on port %d%n", port);
+    }
+
+    /* parse the zone file again on the calling thread and swap it in; a bad file leaves the old zone serving */
+    private synchronized void reloadZone() {
+        long start = System.nanoTime();
+        DNSZone next;
         try {
-            nextServer = InetAddress.getByName("127.0.0.53");
-        } catch(UnknownHostException e) {
-            System.out.println("Should never get here.");
-            System.exit(0);
+            next = new DNSZone(zoneFile, zoneApexes);
+        } catch(DNSZoneException e) {
+            System.out.println("Zone reload failed, keeping the old zone: " + e.getMessage());
+            return;
+        }
+
+        var old = zone;
+        zone = next;
+
+        /* authoritative packets never expire on their own, so drop them all with the zone they came from */
+        if(packetCache != null) {
+            packetCache.clear();
+        }
+
+        System.out.printf("Reloaded zone in %d ms: %d records (%+d), %d names (%+d)%n",
+            (System.nanoTime() - start) / 1000000,
+            next.getRecordCount(), next.getRecordCount() - old.getRecordCount(),
+            next.getNameCount(), next.getNameCount() - old.getNameCount());
+    }
+
+    /* reload on SIGHUP, and when the zone file's modification time or size changes if polling is enabled */
+    private void watchZone() {
+        if(!DNSSignals.onHangup(this::reloadZone)) {
+            System.out.println("SIGHUP not available, zone reloads on file changes only");
+        }
+
+        if(zoneReloadSeconds <= 0) {
+            return;
+        }
+
+        var watcher = new Thread(() -> {
+            var file = new File(zoneFile);
+            long loaded_modified = file.lastModified();
+            long loaded_length = file.length();
+            long seen_modified = loaded_modified;
+            long seen_length = loaded_length;
+            try {
+                while(true) {
+                    Thread.sleep(zoneReloadSeconds * 1000L);
+                    long modified = file.lastModified();
+                    long length = file.length();
+
+                    /* an editor may still be writing the file, so wait for one quiet interval */
+                    if(modified != seen_modified || length != seen_length) {
+                        seen_modified = modified;
+                        seen_length = length;
+                        continue;
+                    }
+                    if(modified != loaded_modified || length != loaded_length) {
+                        loaded_modified = modified;
+                        loaded_length = length;
+                        reloadZone();
+                    }
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "dns-zone-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /* fill the cache from the last snapshot, so a restart doesn't send every query upstream at once */
+    private void loadSnapshot() {
+        if(cacheSnapshot == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            int kept = DNSCacheSnapshot.load(cache, cacheSnapshot);
+            System.out.printf("Loaded %d cached RRsets from %s in %d ms, %d records held%n",
+                kept, cacheSnapshot, (System.nanoTime() - start) / 1000000, cache.size());
+        } catch(IOException e) {
+            System.out.println("Could not load cache snapshot, starting cold: " + e.getMessage());
+        }
+    }
+
+    /* synchronized so the periodic writer and the shutdown hook never write the file at the same time */
+    private synchronized void saveSnapshot() {
+        long start = System.nanoTime();
+        try {
+            int written = DNSCacheSnapshot.write(cache, cacheSnapshot);
+            System.out.printf("Saved %d cached RRsets to %s in %d ms%n", written, cacheSnapshot, (System.nanoTime() - start) / 1000000);
+        } catch(IOException e) {
+            System.out.println("Could not save cache snapshot: " + e.getMessage());
+        }
+    }
+
+    private void startSnapshots() {
+        if(cacheSnapshot == null || snapshotSeconds <= 0) {
+            return;
+        }
+        var writer = new Thread(() -> {
+            try {
+                while(true) {
+                    Thread.sleep(snapshotSeconds * 1000L);
+                    saveSnapshot();
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "dns-cache-snapshot");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /*
+     * Where a server loop's outgoing packets go while it handles one message. Each
+     * loop keeps one and reuses it. The reply we encode ourselves, at most one per
+     * message, is written straight into a buffer the loop hands in (from its pool
+     * under NIO), so answering from the zone or the caches allocates no packet.
+     * Anything already in wire form, like a forwarded query, is queued as a packet.
+     */
+    private static class Output {
+        DNSMessage encoder = new DNSMessage();
+        ArrayList<DatagramPacket> packets = new ArrayList<DatagramPacket>();
+        ByteBuffer reply;
+        SocketAddress replyTarget;
+        boolean replied;
+
+        /* start on the next message; null if it can't produce a reply of ours, like a timer tick */
+        void reset(ByteBuffer reply) {
+            packets.clear();
+            this.reply = reply;
+            this.replyTarget = null;
+            this.replied = false;
+        }
+
+        void send(byte[] data, SocketAddress target) {
+            send(data, data.length, target);
+        }
+
+        void send(byte[] data, int length, SocketAddress target) {
+            packets.add(new DatagramPacket(data, length, target));
+        }
+
+        void reply(DNSMessageView query, ArrayList<DNSRecord> answers, ArrayList<DNSRecord> authorities, boolean isAuthoritative, int rcode) {
+            reply.clear();
+            encoder.encode(reply, query, answers, authorities, isAuthoritative, rcode);
+            replied(query.getSource());
         }
-        nextServerPort = 53;
 
-        /* TODO: add a DNSCache object :)*/
+        /* the reply buffer was filled some other way, e.g. by the packet cache */
+        void replied(SocketAddress target) {
+            replyTarget = target;
+            replied = true;
+        }
+
+        /* the encoded reply decoded again; only built for logging */
+        public String toString() {
+            return new DNSMessage(reply.duplicate(), replyTarget).toString();
+        }
+    }
+
+    /* answer from expired records right away and ask upstream for fresh ones in the background (RFC 8767) */
+    private void answerStale(DNSMessageView query, ArrayList<DNSRecord> stale, Output out) {
+        out.reply(query, stale, null, false, 0);
+        metrics.reply(DNSMetrics.CACHE, 0);
+        if(DNSLog.packets()) {
+            System.out.println("Stale reply to " + query.getSource());
+            DNSLog.message(out);
+        }
 
-        System.out.printf("Starting server on port %d%n", PORT);
+        /* refresh in the background; nobody waits on it, and a refresh already in flight is enough */
+        forwardQuery(query.getQuestionKey(), query.toMessage(), false, out);
     }
 
-    /* TODO: complete me! */
-    private DatagramPacket handleQuery(DNSMessage query) {
+    private void handleQuery(DNSMessageView query, Output out) {
         /* print the query message contents */
-        System.out.println("Query received from " + query.getPacket().getSocketAddress());
-        System.out.println(query);
+        if(DNSLog.packets()) {
+            System.out.println("Query received from " + query.getSource());
+            DNSLog.message(query);
+        }
+
+        /* no single question to look up, so let the next server deal with it */
+        var key = query.getQuestionKey();
+        if(key == null) {
+            forwardQuery(null, query.toMessage(), true, out);
+            return;
+        }
+
+        /* hot names are answered by patching a response we already encoded */
+        long packetGeneration = 0;
+        if(packetCache != null) {
+            out.reply.clear();
+            if(packetCache.lookup(query, out.reply)) {
+                out.replied(query.getSource());
+                /* authoritative packets came from our zone */
+                metrics.reply((out.reply.get(2) & 0x04) != 0 ? DNSMetrics.ZONE : DNSMetrics.CACHE, out.reply.get(3));
+                if(DNSLog.packets()) {
+                    System.out.println("Cached reply to " + query.getSource());
+                }
+                return;
+            }
+            packetGeneration = packetCache.getGeneration(key);
+        }
 
         /* look for the record in our zone */
         boolean inZone = true;
-        var records = zone.getRecords(query.getQuestionName(), query.getQuestionType(), query.getQuestionClass());
-
-        /* TODO: look for the record in the cache if it's not in our zone */
+        var answer = zone.lookup(key);
+        var records = answer.getRecords();
+
+        if(records.size() == 0) {
+            /* under one of our apexes nobody knows more than we do, so a miss is the final answer */
+            var soa = zone.findApex(key);
+            if(soa != null) {
+                zoneNegative(query, answer.getStatus(), soa, out);
+                return;
+            }
+            inZone = false;
+            records = cache.returnRecords(key);
+        }
 
-        records.addAll(cache.returnRecords(query.getQuestionName(), query.getQuestionType(), query.getQuestionClass()));
-        
 
         /* send the response back to the client if we found the record either in our zone or in the cache */
         if(records.size() != 0) {
-            /* make a response message */
-            var reply = new DNSMessage(query, records, inZone);
+            /* encode the response straight into the loop's send buffer */
+            out.reply(query, records, null, inZone, 0);
+            if(packetCache != null && !out.encoder.isTruncated()) {
+                packetCache.put(key.copy(), out.reply, out.encoder.getAnswerTTLOffsets(), records, inZone, packetGeneration);
+            }
 
             /* print the response message contents */
-            System.out.println("Reply to " + query.getPacket().getSocketAddress());
-            System.out.println(reply);
+            metrics.reply(inZone ? DNSMetrics.ZONE : DNSMetrics.CACHE, 0);
+            if(DNSLog.packets()) {
+                System.out.println("Reply to " + query.getSource());
+                DNSLog.message(out);
+            }
 
-            /* make and return a response packet */
-            return new DatagramPacket(reply.getData(), reply.getDataLength(), query.getPacket().getSocketAddress());
+            /* refresh a popular RRset before it expires, so the next client doesn't wait on upstream */
+            if(!inZone && cache.shouldPrefetch(key)) {
+                if(DNSLog.packets()) {
+                    System.out.println("Prefetching " + key.getName());
+                }
+                forwardQuery(key, query.toMessage(), false, out);
+            }
+            return;
         }
 
-        /* if we didn't find the record, send to the next server (see nextServer and nextServerPort variables) */
+        /* a name or type we recently learned doesn't exist is answered without asking again (RFC 2308) */
+        var authority = new ArrayList<DNSRecord>();
+        int rcode = cache.returnNegative(key, authority);
+        if(rcode >= 0) {
+            out.reply(query, records, authority, false, rcode);
+            metrics.reply(DNSMetrics.CACHE, rcode);
+            if(DNSLog.packets()) {
+                System.out.println("Negative reply to " + query.getSource());
+                DNSLog.message(out);
+            }
+            return;
+        }
 
-        /* TODO: print the response message contents */
-        	System.out.println("Forwarding Query to " + nextServer);
-        	System.out.println(query);
+        /* serve-stale: an expired record beats waiting on a slow or unreachable upstream */
+        var stale = cache.returnStaleRecords(key);
+        if(stale.size() != 0) {
+            answerStale(query, stale, out);
+            return;
+        }
 
-        /* TODO: store the query so we can respond to it when we get a reply :)*/
-          outstandingQueries.put(query.getID(), query);
+        /* if we didn't find the record, send to the fastest healthy upstream */
+        forwardQuery(key, query.toMessage(), true, out);
+    }
 
-        /* TODO: make and return a new DatagramPacket query packet to forward :)*/
-         return new DatagramPacket(query.getData(), query.getDataLength(), nextServer, nextServerPort);
+    /* an authoritative NXDOMAIN or NODATA, with our SOA so resolvers can cache it (RFC 2308) */
+    private void zoneNegative(DNSMessageView query, int status, DNSRecord soa, Output out) {
+        var authority = new ArrayList<DNSRecord>(1);
+        authority.add(soa);
+        int rcode = status == DNSZone.NXDOMAIN ? 3 : 0;
+        out.reply(query, NO_RECORDS, authority, true, rcode);
+        metrics.reply(DNSMetrics.ZONE, rcode);
+        if(DNSLog.packets()) {
+            System.out.println("Authoritative negative reply to " + query.getSource());
+            DNSLog.message(out);
+        }
     }
 
-    /* TODO: complete me! */
-    private DatagramPacket handleReply(DNSMessage reply) {
-        /* print the reply message contents */
-        System.out.println("Reply received from " + reply.getPacket().getSocketAddress());
-        System.out.println(reply);
+    /* a reply to query from what its resolution task found */
+    private void resolvedReply(DNSMessage query, DNSResolver.Task task, Output out) {
+        var reply = new DNSMessage(query, task.getAnswers(), task.getAuthority(), false);
+        reply.setRcode(task.getRcode());
+        metrics.reply(DNSMetrics.UPSTREAM, task.getRcode());
+        out.send(reply.getData(), reply.getDataLength(), query.getSource());
+    }
 
-        /* TODO: match the reply to the original query :)*/
-        DNSMessage origQuery = outstandingQueries.get(reply.getID());
+    /*
+     * Send a query upstream, unless the same (name, type, class) is already on its
+     * way there, in which case the client waits for that reply. key is null for a
+     * query we can't coalesce, and may be a probe. A stale refresh passes
+     * wait=false: it only needs the question to be in flight. In recursive mode
+     * "upstream" is the first authoritative server on the way to the answer.
+     */
+    private void forwardQuery(DNSKey key, DNSMessage query, boolean wait, Output out) {
+        /* a query we can't parse has nothing to send on, and must never be left in flight */
+        if(query.isMalformed()) {
+            if(DNSLog.packets()) {
+                System.out.println("Dropping malformed query from " + query.getSource());
+            }
+            return;
+        }
 
-        /* TODO: add answers to the cache :)*/
-        cache.addEntries(reply.getAnswers());
+        DNSResolver.Task task = null;
+        if(resolver != null) {
+            /* we only know how to walk the IN tree, one question at a time */
+            if(key == null || key.getRClass() != 1) {
+                if(wait) {
+                    out.send(query.errorReply(5), query.getSource());
+                    metrics.reply(DNSMetrics.UPSTREAM, 5);
+                }
+                return;
+            }
+            /* a query nobody waits on is a refresh of something we have cached */
+            task = resolver.start(key, !wait);
+            if(task.isDone()) {
+                if(wait) {
+                    resolvedReply(query, task, out);
+                }
+                return;
+            }
+        }
 
-        /* TODO: remove the original query from the outstanding set :)*/
-        outstandingQueries.remove(reply.getID());
+        /* remember the query so its reply can be matched to it, or join one already in flight for the same question */
+        var upstream = inFlight.add(key, query, wait, task);
+        if(upstream == null) {
+            return;
+        }
+        if(upstream == DNSInFlightTable.FULL) {
+            if(DNSLog.packets()) {
+                System.out.println("Too many queries in flight, answering SERVFAIL");
+            }
+            if(wait) {
+                out.send(query.errorReply(2), query.getSource());
+                metrics.reply(DNSMetrics.UPSTREAM, 2);
+            }
+            return;
+        }
 
-        /* TODO: print the reply message again for consistency :)*/
-        System.out.println("Forwarding reply to" + origQuery.getPacket().getSocketAddress());
-        System.out.println(reply);
+        if(DNSLog.packets()) {
+            if(task != null) {
+                System.out.println("Resolving " + task.getQuestion() + " at " + upstream.getTarget());
+            } else {
+                System.out.println("Forwarding Query to " + upstream.getTarget());
+            }
+            DNSLog.message(query);
+        }
 
-        /* TODO: make and return a new response packet to send to the original client :)*/
-        return new DatagramPacket(reply.getData(), reply.getDataLength(), origQuery.getPacket().getSocketAddress());
+        out.send(upstream.getPacket(), upstream.getTarget());
     }
 
-    private DatagramPacket handleMessage(DatagramPacket incomingPkt) {
-        /* TODO: update the cache each time we receive a message, to remove any records with expired TTLs :)*/
-        cache.checkCache();    
+    /* hedge slow upstream queries, re-send the ones that timed out and give up on the ones out of tries */
+    private void handleTimeouts(Output out) {
+        if(!inFlight.isDue()) {
+            return;
+        }
+        var due = new ArrayList<DNSInFlightTable.Query>();
+        inFlight.expire(MAX_TRIES, due);
+
+        for(var query : due) {
+            boolean log = DNSLog.packets();
+            var name = query.getClientQuery().getQuestionName();
+            if(query.getOutcome() == DNSInFlightTable.TIMED_OUT) {
+                if(log) {
+                    System.out.println("Server " + query.getTarget() + " timed out resolving " + name);
+                }
+                resolver.handleTimeout(query.getTask());
+                nextStep(query, out);
+            } else if(query.getOutcome() == DNSInFlightTable.HEDGE) {
+                if(log) {
+                    System.out.println("Upstream slow, hedging " + name + " to " + query.getHedgeTarget());
+                }
+                out.send(query.getPacket(), query.getHedgeTarget());
+            } else if(query.getOutcome() == DNSInFlightTable.RESEND) {
+                if(log) {
+                    System.out.println("Upstream timed out, retrying " + name + " with " + query.getTarget());
+                }
+                out.send(query.getPacket(), query.getTarget());
+            } else {
+                if(log) {
+                    System.out.println("Upstream timed out, answering SERVFAIL for " + name);
+                }
+                for(var waiter : query.getWaiters()) {
+                    out.send(waiter.errorReply(2), waiter.getSource());
+                    metrics.reply(DNSMetrics.UPSTREAM, 2);
+                }
+            }
+        }
+    }
+
+    /* send a parked iterative query on to its next server, or answer its clients once its task is done */
+    private void nextStep(DNSInFlightTable.Query query, Output out) {
+        var task = query.getTask();
+        if(!task.isDone()) {
+            inFlight.resend(query);
+            if(DNSLog.packets()) {
+                System.out.println("Resolving " + task.getQuestion() + " at " + query.getTarget());
+            }
+            out.send(query.getPacket(), query.getTarget());
+            return;
+        }
+
+        var waiters = inFlight.finish(query);
+        if(DNSLog.packets()) {
+            System.out.printf("Resolved %s in %d queries: rcode %d, %d record(s), answering %d client(s)%n",
+                query.getClientQuery().getQuestionName(), task.getQueries(), task.getRcode(), task.getAnswers().size(), waiters.size());
+        }
+        for(var waiter : waiters) {
+            resolvedReply(waiter, task, out);
+        }
+    }
+
+    private void handleReply(DNSMessage reply, Output out) {
+        /* print the reply message contents */
+        if(DNSLog.packets()) {
+            System.out.println("Reply received from " + reply.getSource());
+            DNSLog.message(reply);
+        }
 
-        /* create a DNS Message object that will parse the request packet data */
-        var incomingMessage = new DNSMessage(incomingPkt);
+        var query = inFlight.match(reply);
+
+        /* a late reply to a query we already re-sent or gave up on, or a forgery; either way keep it out of the cache */
+        if(query == null) {
+            if(DNSLog.packets()) {
+                System.out.println("Dropping reply that matches no query in flight");
+            }
+            return;
+        }
+
+        /* the resolver caches what it trusts itself and decides where to go next */
+        if(query.getTask() != null) {
+            resolver.handleReply(query.getTask(), reply);
+            nextStep(query, out);
+            return;
+        }
+
+        /* an answer list cut short is not a complete RRset, so only a whole reply goes in the cache */
+        boolean complete = !reply.isMalformed() && !reply.isTruncated();
+        if(complete) {
+            cache.addEntries(reply.getAnswers());
+            cache.addNegativeReply(reply);
+        }
+
+        if(DNSLog.packets()) {
+            System.out.printf("Forwarding reply to %d client(s)%n", query.getWaiters().size());
+        }
+
+        /*
+         * fan the reply out to every client waiting on it, each under its own ID. One
+         * we couldn't parse is a SERVFAIL, and one too big for a client's UDP reply
+         * goes out as just the header and question with TC set, so it retries over TCP
+         */
+        for(var waiter : query.getWaiters()) {
+            if(reply.isMalformed()) {
+                out.send(waiter.errorReply(2), waiter.getSource());
+                metrics.reply(DNSMetrics.UPSTREAM, 2);
+            } else if(reply.getDataLength() > MAX_SIZE) {
+                out.send(waiter.truncatedReply(reply.getRcode()), waiter.getSource());
+                metrics.reply(DNSMetrics.UPSTREAM, reply.getRcode());
+            } else {
+                out.send(reply.replyTo(waiter), waiter.getSource());
+                metrics.reply(DNSMetrics.UPSTREAM, reply.getRcode());
+            }
+        }
+    }
+
+    private void handleMessage(DNSMessageView incomingMessage, Output out) {
+        cache.checkCache(EXPIRY_BATCH);
 
         /* handle queries */
         if(incomingMessage.isQuery()) {
-            return handleQuery(incomingMessage);
+            handleQuery(incomingMessage, out);
         }
 
-        /* handle replies */
+        /* handle replies, which are parsed in full since their answers are kept in the cache */
         else {
-            return handleReply(incomingMessage);
+            handleReply(incomingMessage.toMessage(), out);
         }
     }
 
-    public void run() {
-        try (
-            var sock = new DatagramSocket(PORT, InetAddress.getLoopbackAddress());
-        ) {
+    private DatagramSocket openSocket(boolean reusePort) throws IOException {
+        var sock = new DatagramSocket(null);
+        if(reusePort) {
+            sock.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        sock.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        return sock;
+    }
+
+    private static boolean reusePortSupported() throws IOException {
+        try (var probe = new DatagramSocket(null)) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    private void serve(DatagramSocket sock) {
+        /* nothing keeps a reference to the receive buffer once a packet is handled, so reuse it */
+        var in_packet = new DatagramPacket(new byte[MAX_RECEIVE], MAX_RECEIVE);
+        var in_buf = ByteBuffer.wrap(in_packet.getData());
+        var view = new DNSMessageView();
+
+        /* our own replies are encoded into one buffer and sent from one packet, both reused */
+        var out = new Output();
+        var reply_buf = ByteBuffer.allocate(MAX_SIZE);
+        var reply_packet = new DatagramPacket(reply_buf.array(), MAX_SIZE);
+
+        try {
+            sock.setSoTimeout(TIMER_MILLIS);
+
             /* keep reading packets one at a time, forever */
             while(true) {
-                /* packet to store the incoming message */
-                var in_packet = new DatagramPacket(new byte[MAX_SIZE], MAX_SIZE);
+                in_packet.setLength(MAX_RECEIVE);
 
-                /* blocking call, read one packet */
-                sock.receive(in_packet);
+                /* upstream timeouts are handled between packets, and every TIMER_MILLIS when idle */
+                out.reset(null);
+                handleTimeouts(out);
+                send(sock, out, reply_packet);
 
-                /* handle this packet */
-                var out_packet = handleMessage(in_packet);
+                /* blocking call, read one packet */
+                try {
+                    sock.receive(in_packet);
+                } catch(SocketTimeoutException e) {
+                    continue;
+                }
 
-                /* only send a response if there were no errors */
-                if (out_packet != null) {
-                    /* send the response */
-                    sock.send(out_packet);
+                /* drop anything too malformed to parse */
+                in_buf.clear().limit(in_packet.getLength());
+                if(!view.wrap(in_buf, in_packet.getSocketAddress())) {
+                    continue;
                 }
+
+                /* handle this packet, which may produce several packets to send */
+                out.reset(reply_buf);
+                handleMessage(view, out);
+                send(sock, out, reply_packet);
             }
         } catch(IOException e) {
             /* Have to catch IOexceptions for most socket calls */
             System.out.println("Network error!");
         }
     }
+
+    private static void send(DatagramSocket sock, Output out, DatagramPacket reply_packet) throws IOException {
+        if(out.replied) {
+            reply_packet.setData(out.reply.array(), 0, out.reply.limit());
+            reply_packet.setSocketAddress(out.replyTarget);
+            sock.send(reply_packet);
+        }
+        for(var out_packet : out.packets) {
+            sock.send(out_packet);
+        }
+    }
+
+    private DatagramChannel openChannel(boolean reusePort) throws IOException {
+        var channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        if(reusePort) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    /* a reply that could not be sent because the socket buffer was full */
+    private static class PendingSend {
+        ByteBuffer buf;
+        SocketAddress target;
+
+        PendingSend(ByteBuffer buf, SocketAddress target) {
+            this.buf = buf;
+            this.target = target;
+        }
+    }
+
+    /* send a pooled buffer, queueing it if the channel is not writable; it goes back to the pool once sent */
+    private static void sendNio(DatagramChannel channel, DNSBufferPool pool, ArrayDeque<PendingSend> pending, ByteBuffer buf, SocketAddress target) throws IOException {
+        if(pending.isEmpty() && channel.send(buf, target) != 0) {
+            pool.release(buf);
+        } else {
+            pending.add(new PendingSend(buf, target));
+        }
+    }
+
+    /* our reply is already in its pooled buffer; packets in wire form are copied into one */
+    private static void sendNio(DatagramChannel channel, DNSBufferPool pool, ArrayDeque<PendingSend> pending, Output out) throws IOException {
+        if(out.replied) {
+            sendNio(channel, pool, pending, out.reply, out.replyTarget);
+        } else if(out.reply != null) {
+            pool.release(out.reply);
+        }
+        for(var pkt : out.packets) {
+            var buf = pool.acquire(pkt.getLength());
+            buf.put(pkt.getData(), pkt.getOffset(), pkt.getLength());
+            buf.flip();
+            sendNio(channel, pool, pending, buf, pkt.getSocketAddress());
+        }
+    }
+
+    /* event loop over a non-blocking channel; one receive buffer per loop, and send buffers from a per-loop pool */
+    private void serveNio(DatagramChannel channel) {
+        var pool = new DNSBufferPool(BUFFER_POOL_SIZE, MAX_SIZE);
+        var in_buf = ByteBuffer.allocateDirect(MAX_RECEIVE);
+        var pending = new ArrayDeque<PendingSend>();
+        var view = new DNSMessageView();
+        var out = new Output();
+
+        try (var selector = Selector.open()) {
+            var key = channel.register(selector, SelectionKey.OP_READ);
+
+            while(true) {
+                selector.select(TIMER_MILLIS);
+                selector.selectedKeys().clear();
+
+                out.reset(null);
+                handleTimeouts(out);
+                sendNio(channel, pool, pending, out);
+
+                /* flush replies held back while the socket buffer was full */
+                while(!pending.isEmpty()) {
+                    var next = pending.peek();
+                    if(channel.send(next.buf, next.target) == 0) {
+                        break;
+                    }
+                    pending.poll();
+                    pool.release(next.buf);
+                }
+
+                /* drain every packet that is ready before going back to select */
+                while(pending.isEmpty()) {
+                    in_buf.clear();
+                    var source = channel.receive(in_buf);
+                    if(source == null) {
+                        break;
+                    }
+                    in_buf.flip();
+
+                    /* the view reads straight out of the receive buffer, which is reused once we're done */
+                    out.reset(pool.acquire());
+                    if(view.wrap(in_buf, source)) {
+                        handleMessage(view, out);
+                    }
+                    sendNio(channel, pool, pending, out);
+                }
+
+                /* stop reading while replies are backed up, so we don't queue without bound */
+                if(pending.isEmpty()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                } else {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+        } catch(IOException e) {
+            System.out.println("Network error!");
+        }
+    }
+
+    public void run() {
+        /*
+         * With SO_REUSEPORT every thread gets its own socket and the kernel spreads
+         * packets across them. Otherwise blocking threads take turns on one shared
+         * socket, and NIO falls back to a single event loop. Upstream replies may
+         * land on any thread, so all shared state is thread-safe.
+         */
+        var sockets = new ArrayList<Closeable>();
+        var workers = new ArrayList<Thread>();
+        try {
+            boolean reusePort = numThreads > 1 && reusePortSupported();
+            for(int i = 0; i < numThreads; i++) {
+                Runnable loop;
+                if(useNio) {
+                    if(!reusePort && i > 0) {
+                        break;
+                    }
+                    var channel = openChannel(reusePort);
+                    sockets.add(channel);
+                    loop = () -> serveNio(channel);
+                } else {
+                    if(reusePort || sockets.isEmpty()) {
+                        sockets.add(openSocket(reusePort));
+                    }
+                    var sock = (DatagramSocket)sockets.get(sockets.size() - 1);
+                    loop = () -> serve(sock);
+                }
+                var worker = new Thread(loop, "dns-worker-" + i);
+                workers.add(worker);
+                worker.start();
+            }
+            System.out.printf("Serving with %d %s thread(s) on %d socket(s)%n", workers.size(), useNio ? "NIO" : "blocking", sockets.size());
+
+            for(var worker : workers) {
+                worker.join();
+            }
+        } catch(IOException e) {
+            System.out.println("Network error!");
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for(var sock : sockets) {
+                try {
+                    sock.close();
+                } catch(IOException e) {
+                    System.out.println("Network error!");
+                }
+            }
+        }
+    }
+
         public static void main(String[] args) {
-        if(args.length != 1) {
-            System.out.println("Usage: sudo java dns.DNSServer zone_file");
+        var config = new DNSConfig(args);
+
+        DNSZone zone = null;
+        try {
+            long start = System.nanoTime();
+            zone = new DNSZone(config.getZoneFile(), config.getZoneApexes());
+            System.out.printf("Loaded %d records under %d names in %d ms%n",
+                zone.getRecordCount(), zone.getNameCount(), (System.nanoTime() - start) / 1000000);
+            for(var apex : zone.getApexNames()) {
+                System.out.println("Authoritative for " + apex);
+            }
+            if(zone.getApexNames().isEmpty() && zone.getCommonSuffix() != null) {
+                System.out.println("Not authoritative for any zone; misses are forwarded (use --zone-apex=" + zone.getCommonSuffix() + " to answer them)");
+            }
+        } catch(DNSZoneException e) {
+            System.out.println(e.getMessage());
             System.exit(0);
         }
-        var zone = new DNSZone(args[0]);
-        var server = new DNSServer(zone);
+
+        var server = new DNSServer(zone, config);
+        server.watchZone();
+        server.loadSnapshot();
+        server.startSnapshots();
+        if(server.metricsPort > 0) {
+            try {
+                server.metrics.serve(server.metricsPort);
+            } catch(IOException e) {
+                System.out.println("Could not serve metrics: " + e.getMessage());
+            }
+        }
+
+        /* report cache effectiveness on shutdown so the caps can be sized against real traffic */
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if(server.cacheSnapshot != null) {
+                server.saveSnapshot();
+            }
+            System.out.println(server.cache);
+            System.out.println(server.inFlight);
+            System.out.println(server.upstreams);
+            if(server.packetCache != null) {
+                System.out.println(server.packetCache);
+            }
+        }));
+
         server.run();
     }
 }
@@ -0,0 +1,36 @@
+package dns;
+
+import java.lang.reflect.Proxy;
+
+/*
+ * SIGHUP through sun.misc.Signal, reached only by reflection: it is JDK-internal
+ * API that javac warns about wherever it is named, and not every JVM has it.
+ */
+class DNSSignals {
+
+    /* run action on every SIGHUP; false if this JVM can't deliver it to us */
+    static boolean onHangup(Runnable action) {
+        try {
+            var signalClass = Class.forName("sun.misc.Signal");
+            var handlerClass = Class.forName("sun.misc.SignalHandler");
+            var handler = Proxy.newProxyInstance(handlerClass.getClassLoader(), new Class<?>[] { handlerClass }, (proxy, method, args) -> {
+                switch(method.getName()) {
+                    case "handle":
+                        action.run();
+                        return null;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        return "SIGHUP handler";
+                }
+            });
+            var hangup = signalClass.getConstructor(String.class).newInstance("HUP");
+            signalClass.getMethod("handle", signalClass, handlerClass).invoke(null, hangup, handler);
+            return true;
+        } catch(ReflectiveOperationException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package dns;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+
+/*
+ * The resolvers we forward misses to. Each one keeps a smoothed RTT (the TCP
+ * estimator from RFC 6298), a recent latency histogram and a health state: after
+ * FAILURES_BEFORE_DOWN timeouts in a row it is left alone for a backoff that
+ * doubles up to MAX_BACKOFF_MILLIS, after which one query probes it again.
+ *
+ * Queries go to the healthy upstream with the lowest smoothed RTT. One that has
+ * never answered counts as fastest, so every upstream gets measured. A query
+ * still unanswered past the chosen upstream's hedge percentile is also sent to the
+ * next best one, and whichever answers first wins.
+ */
+class DNSUpstreams {
+
+    final private static int FAILURES_BEFORE_DOWN = 3;
+    final private static long MIN_BACKOFF_MILLIS = 1000;
+    final private static long MAX_BACKOFF_MILLIS = 30000;
+
+    /* percentiles are not trusted for hedging until this many replies have been timed */
+    final private static int MIN_HEDGE_SAMPLES = 20;
+    final private static int MIN_HEDGE_MILLIS = 5;
+
+    /* the histogram forgets old samples by halving every this many replies */
+    final private static int HISTOGRAM_DECAY = 1000;
+
+    static class Upstream {
+        InetSocketAddress address;
+        double srtt_ms;
+        double rttvar_ms;
+        boolean measured;
+        int failures;
+        long backoff;
+        long down_until;
+        DNSLatencyHistogram recent;
+        /* every reply's RTT since startup, for the metrics endpoint */
+        DNSLatencyHistogram all;
+        long rtt_sum_micros;
+        long replies;
+        long timeouts;
+
+        Upstream(InetSocketAddress address) {
+            this.address = address;
+            this.recent = new DNSLatencyHistogram(HISTOGRAM_DECAY);
+            this.all = new DNSLatencyHistogram(0);
+        }
+    }
+
+    private ArrayList<Upstream> upstreams;
+
+    /* 0 disables hedging */
+    private double hedgePercentile;
+
+    DNSUpstreams(ArrayList<InetSocketAddress> addresses, int hedgePercent) {
+        this.upstreams = new ArrayList<Upstream>();
+        for(var address : addresses) {
+            upstreams.add(new Upstream(address));
+        }
+        this.hedgePercentile = hedgePercent / 100.0;
+    }
+
+    private Upstream find(SocketAddress address) {
+        for(var upstream : upstreams) {
+            if(upstream.address.equals(address)) {
+                return upstream;
+            }
+        }
+        return null;
+    }
+
+    private static boolean contains(ArrayList<SocketAddress> list, SocketAddress address) {
+        return list != null && list.contains(address);
+    }
+
+    /*
+     * The best upstream not in exclude: healthy before down, then lowest smoothed RTT.
+     * If every upstream is excluded the best overall is returned, so a retry always
+     * has somewhere to go.
+     */
+    synchronized InetSocketAddress pick(ArrayList<SocketAddress> exclude) {
+        long now = System.currentTimeMillis();
+        Upstream best = null;
+        for(int pass = 0; pass < 2 && best == null; pass++) {
+            for(var upstream : upstreams) {
+                if(pass == 0 && contains(exclude, upstream.address)) {
+                    continue;
+                }
+                if(best == null || better(upstream, best, now)) {
+                    best = upstream;
+                }
+            }
+        }
+        return best.address;
+    }
+
+    private static boolean better(Upstream a, Upstream b, long now) {
+        boolean a_up = a.down_until <= now;
+        boolean b_up = b.down_until <= now;
+        if(a_up != b_up) {
+            return a_up;
+        }
+        if(!a_up) {
+            return a.down_until < b.down_until;
+        }
+        double a_rtt = a.measured ? a.srtt_ms : 0;
+        double b_rtt = b.measured ? b.srtt_ms : 0;
+        return a_rtt < b_rtt;
+    }
+
+    /* the second choice for a query first sent to primary, or null if there is none worth hedging to */
+    synchronized InetSocketAddress pickHedge(SocketAddress primary) {
+        long now = System.currentTimeMillis();
+        Upstream best = null;
+        for(var upstream : upstreams) {
+            if(upstream.address.equals(primary) || upstream.down_until > now) {
+                continue;
+            }
+            if(best == null || better(upstream, best, now)) {
+                best = upstream;
+            }
+        }
+        return best == null ? null : best.address;
+    }
+
+    /* how long to wait on target before hedging, or 0 to wait for the full timeout */
+    synchronized int hedgeDelayMillis(SocketAddress target) {
+        var upstream = find(target);
+        if(hedgePercentile <= 0 || upstreams.size() < 2 || upstream == null || upstream.recent.getCount() < MIN_HEDGE_SAMPLES) {
+            return 0;
+        }
+        return (int)Math.max(MIN_HEDGE_MILLIS, upstream.recent.percentile(hedgePercentile) / 1000);
+    }
+
+    private static void updateRTT(Upstream upstream, long rtt_nanos) {
+        double rtt_ms = rtt_nanos / 1e6;
+        if(!upstream.measured) {
+            upstream.srtt_ms = rtt_ms;
+            upstream.rttvar_ms = rtt_ms / 2;
+            upstream.measured = true;
+        } else {
+            upstream.rttvar_ms = 0.75 * upstream.rttvar_ms + 0.25 * Math.abs(upstream.srtt_ms - rtt_ms);
+            upstream.srtt_ms = 0.875 * upstream.srtt_ms + 0.125 * rtt_ms;
+        }
+        upstream.recent.record(rtt_nanos / 1000);
+    }
+
+    synchronized void recordReply(SocketAddress source, long rtt_nanos) {
+        var upstream = find(source);
+        if(upstream == null) {
+            return;
+        }
+        updateRTT(upstream, rtt_nanos);
+        upstream.all.record(rtt_nanos / 1000);
+        upstream.rtt_sum_micros += rtt_nanos / 1000;
+        upstream.replies++;
+        upstream.failures = 0;
+        upstream.backoff = 0;
+        upstream.down_until = 0;
+    }
+
+    /* a hedge beat target, which had taken at least elapsed_nanos so far; without this a slow upstream would keep its old RTT */
+    synchronized void recordOvertaken(SocketAddress target, long elapsed_nanos) {
+        var upstream = find(target);
+        if(upstream != null) {
+            updateRTT(upstream, elapsed_nanos);
+        }
+    }
+
+    synchronized void recordTimeout(SocketAddress target, int timeoutMillis) {
+        var upstream = find(target);
+        if(upstream == null) {
+            return;
+        }
+        upstream.timeouts++;
+
+        /* count the timeout as a very slow reply, so a struggling upstream loses its place quickly */
+        upstream.srtt_ms = Math.max(upstream.srtt_ms * 2, timeoutMillis);
+        upstream.measured = true;
+
+        if(++upstream.failures >= FAILURES_BEFORE_DOWN) {
+            upstream.backoff = Math.min(MAX_BACKOFF_MILLIS, Math.max(MIN_BACKOFF_MILLIS, upstream.backoff * 2));
+            upstream.down_until = System.currentTimeMillis() + upstream.backoff;
+            upstream.failures = 0;
+            System.out.printf("Upstream %s marked down for %d ms%n", upstream.address, upstream.backoff);
+        }
+    }
+
+    /* host or host:port, comma separated; the port defaults to 53 */
+    static ArrayList<InetSocketAddress> parse(String list) {
+        return parse(list, 53);
+    }
+
+    /* the same, with default_port for the entries that don't give one */
+    static ArrayList<InetSocketAddress> parse(String list, int default_port) {
+        var addresses = new ArrayList<InetSocketAddress>();
+        for(var item : list.split(",")) {
+            item = item.trim();
+            if(item.isEmpty()) {
+                continue;
+            }
+            var host = item;
+            int port = default_port;
+            int colon = item.lastIndexOf(':');
+            if(colon > 0 && item.indexOf(':') == colon) {
+                host = item.substring(0, colon);
+                port = Integer.parseInt(item.substring(colon + 1));
+            }
+            var address = new InetSocketAddress(host, port);
+            if(address.isUnresolved()) {
+                throw new IllegalArgumentException("unknown host " + host);
+            }
+            addresses.add(address);
+        }
+        return addresses;
+    }
+
+    /* RTT histogram per upstream in the Prometheus text format, buckets at the given limits in microseconds */
+    synchronized void writeMetrics(StringBuilder out, long[] limits) {
+        out.append("# TYPE dns_upstream_rtt_microseconds histogram\n");
+        for(var upstream : upstreams) {
+            var label = String.format("upstream=\"%s:%d\"", upstream.address.getHostString(), upstream.address.getPort());
+            for(var limit : limits) {
+                out.append(String.format("dns_upstream_rtt_microseconds_bucket{%s,le=\"%d\"} %d%n", label, limit, upstream.all.countAtOrBelow(limit)));
+            }
+            out.append(String.format("dns_upstream_rtt_microseconds_bucket{%s,le=\"+Inf\"} %d%n", label, upstream.all.getCount()));
+            out.append(String.format("dns_upstream_rtt_microseconds_sum{%s} %d%n", label, upstream.rtt_sum_micros));
+            out.append(String.format("dns_upstream_rtt_microseconds_count{%s} %d%n", label, upstream.all.getCount()));
+        }
+        out.append("# TYPE dns_upstream_timeouts_total counter\n");
+        for(var upstream : upstreams) {
+            out.append(String.format("dns_upstream_timeouts_total{upstream=\"%s:%d\"} %d%n",
+                upstream.address.getHostString(), upstream.address.getPort(), upstream.timeouts));
+        }
+    }
+
+    public synchronized String toString() {
+        var sb = new StringBuilder();
+        for(var upstream : upstreams) {
+            sb.append(String.format("Upstream %s: srtt %.1f ms, %d replies, %d timeouts, recent %s%n",
+                upstream.address, upstream.srtt_ms, upstream.replies, upstream.timeouts, upstream.recent));
+        }
+        return sb.toString().stripTrailing();
+    }
+}
@@ -1,65 +1,519 @@
 package dns;
 
-import java.io.File;
+import java.io.BufferedReader;
 import java.io.FileNotFoundException;
-import java.lang.NumberFormatException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.HashMap;
+import java.util.stream.IntStream;
 
+/* never modified after the constructor returns, so it is safe to read from any number of threads */
 public class DNSZone {
-    
-    private ArrayList<DNSRecord> records;
-    
-    public DNSZone(String zonefile_name) {
-        records = new ArrayList<DNSRecord>();
-        parseFile(zonefile_name);
-    }
-
-    private void parseFile(String zonefile_name) {
-        try (var scanner = new Scanner(new File(zonefile_name))) {
-            while(scanner.hasNextLine()) {
-                var tokens = scanner.nextLine().split("\\s+");
-                if(tokens.length != 5) {
-                    System.out.println("Error in zone file: format incorrect.");
-                    System.exit(0);
+
+    final public static int FOUND = 0;
+    final public static int NODATA = 1;
+    final public static int NXDOMAIN = 2;
+
+    final private static ArrayList<DNSRecord> NO_RECORDS = new ArrayList<DNSRecord>(0);
+
+    /* lines parsed in parallel at a time, so a huge file is never held in memory as text */
+    final private static int BATCH_SIZE = 65536;
+
+    /* longest CNAME chain we follow inside the zone */
+    final private static int MAX_CNAME_CHAIN = 8;
+
+    /* TTL and minimum of the SOA we make up for an apex, so how long resolvers may cache our negative answers */
+    final private static int NEGATIVE_TTL = 300;
+
+    /* what the zone has to say about one question */
+    public static class Answer {
+        private int status;
+        private ArrayList<DNSRecord> records;
+
+        Answer(int status, ArrayList<DNSRecord> records) {
+            this.status = status;
+            this.records = records;
+        }
+
+        /* FOUND, NODATA or NXDOMAIN */
+        public int getStatus() {
+            return status;
+        }
+
+        /* shared with the zone unless synthesized, so must not be modified */
+        public ArrayList<DNSRecord> getRecords() {
+            return records;
+        }
+    }
+
+    final private static Answer NODATA_ANSWER = new Answer(NODATA, NO_RECORDS);
+    final private static Answer NXDOMAIN_ANSWER = new Answer(NXDOMAIN, NO_RECORDS);
+
+    /*
+     * Every owner name, and every ancestor of one (an empty non-terminal, with no
+     * RRsets). Each RRset is kept wrapped in its FOUND answer, so a hit allocates nothing.
+     */
+    private static class Node {
+        ArrayList<Answer> rrsets;
+
+        Answer get(int type) {
+            if(rrsets == null) {
+                return null;
+            }
+            for(var answer : rrsets) {
+                if(answer.records.get(0).getTypeNum() == type) {
+                    return answer;
+                }
+            }
+            return null;
+        }
+
+        void add(DNSRecord record) {
+            if(rrsets == null) {
+                rrsets = new ArrayList<Answer>(1);
+            }
+            var answer = get(record.getTypeNum());
+            if(answer == null) {
+                answer = new Answer(FOUND, new ArrayList<DNSRecord>(1));
+                rrsets.add(answer);
+            }
+            answer.records.add(record);
+        }
+    }
+
+    /* names are keyed without type or class, so one probe answers FOUND, NODATA and NXDOMAIN alike */
+    private HashMap<DNSKey,Node> names;
+    private int num_records;
+
+    /* set instead of names when the zone file is a compiled image (see DNSZoneImage) */
+    private DNSZoneImage image;
+
+    /*
+     * Apex names (name-only keys) we are authoritative for, each with the FOUND
+     * answer for its SOA. Below an apex a miss is final: nobody else will know
+     * the name either. label counts bound which ancestors of a name can be apexes.
+     */
+    private HashMap<DNSKey,Answer> apexes;
+    private int min_apex_labels;
+    private int max_apex_labels;
+
+    /* the closest common ancestor of every owner name seen so far; only a hint, never served as an apex */
+    private DNSKey common_ancestor;
+
+    /* scratch keys for walking up a question name, one pair per serving thread */
+    final private static ThreadLocal<DNSKey[]> probes = ThreadLocal.withInitial(() -> new DNSKey[] { DNSKey.probe(), DNSKey.probe() });
+
+    public DNSZone(String zonefile_name) throws DNSZoneException {
+        this(zonefile_name, null);
+    }
+
+    /*
+     * A text zone file is parsed onto the heap; a compiled image is mapped and read
+     * in place. apex_names are the zones we answer for; with null or none we are
+     * authoritative for nothing, and a name the file doesn't hold is forwarded.
+     */
+    public DNSZone(String zonefile_name, String[] apex_names) throws DNSZoneException {
+        if(DNSZoneImage.isImage(zonefile_name)) {
+            image = new DNSZoneImage(zonefile_name);
+            num_records = image.getRecordCount();
+            common_ancestor = image.getApex();
+        } else {
+            names = new HashMap<DNSKey,Node>();
+            num_records = 0;
+            parseFile(zonefile_name);
+            if(common_ancestor != null && common_ancestor.getLabelCount() < 2) {
+                common_ancestor = null;
+            }
+        }
+
+        apexes = new HashMap<DNSKey,Answer>();
+        if(apex_names != null) {
+            for(var apex_name : apex_names) {
+                addApex(DNSKey.of(apex_name, 0, 0));
+            }
+        }
+    }
+
+    /* the closest suffix all the zone's names share, below a TLD, or null; a likely --zone-apex */
+    public String getCommonSuffix() {
+        return common_ancestor == null ? null : common_ancestor.getName();
+    }
+
+    private void addApex(DNSKey apex) {
+        var soa = new ArrayList<DNSRecord>(1);
+        soa.add(makeSOA(apex));
+        apexes.put(apex, new Answer(FOUND, soa));
+
+        int labels = apex.getLabelCount();
+        if(apexes.size() == 1 || labels < min_apex_labels) {
+            min_apex_labels = labels;
+        }
+        max_apex_labels = Math.max(max_apex_labels, labels);
+    }
+
+    /* zone files only hold A and CNAME records, so the SOA that goes with our negative answers is made up */
+    private static DNSRecord makeSOA(DNSKey apex) {
+        var name = new byte[apex.getNameLength()];
+        apex.copyName(name, 0);
+        var rdata = ByteBuffer.allocate(2 * name.length + 11 + 20);
+        rdata.put(name);
+        rdata.put((byte)10).put("hostmaster".getBytes()).put(name);
+        rdata.putInt((int)(System.currentTimeMillis() / 1000));
+        rdata.putInt(3600);
+        rdata.putInt(600);
+        rdata.putInt(86400);
+        rdata.putInt(NEGATIVE_TTL);
+        return new DNSRecord(apex.getName(), NEGATIVE_TTL, 1, 6, rdata.array());
+    }
+
+    /* split on runs of whitespace without a regex; null unless there are exactly five fields */
+    private static String[] tokenize(String line) {
+        var tokens = new String[5];
+        int count = 0;
+        int i = 0;
+        while(i < line.length()) {
+            while(i < line.length() && Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            if(i == line.length()) {
+                break;
+            }
+            int start = i;
+            while(i < line.length() && !Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            if(count == 5) {
+                return null;
+            }
+            tokens[count++] = line.substring(start, i);
+        }
+        if(count != 5) {
+            return null;
+        }
+        return tokens;
+    }
+
+    private static boolean validIP(String ip) {
+        var octets = ip.split("\\.");
+        if(octets.length != 4) {
+            return false;
+        }
+        for(var octet : octets) {
+            var value = Integer.parseInt(octet);
+            if(value < 0 || value > 255) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* a name that encodes cleanly: no empty labels but a trailing dot, labels of at most 63 bytes, 255 in all */
+    private static boolean validName(String name) {
+        if(name.equals(".")) {
+            return true;
+        }
+        int end = name.endsWith(".") ? name.length() - 1 : name.length();
+        int wire_length = 1;
+        int start = 0;
+        while(start <= end) {
+            int dot = name.indexOf('.', start);
+            if(dot < 0 || dot > end) {
+                dot = end;
+            }
+            int label_length = dot - start;
+            if(label_length == 0 || label_length > 63) {
+                return false;
+            }
+            wire_length += label_length + 1;
+            start = dot + 1;
+        }
+        return wire_length <= 255;
+    }
+
+    /* one zone file line as a record, null for a blank line; throws IllegalArgumentException naming the problem */
+    private static DNSRecord parseLine(String line) {
+        if(line.isBlank()) {
+            return null;
+        }
+
+        var tokens = tokenize(line);
+        if(tokens == null) {
+            throw new IllegalArgumentException("format incorrect");
+        }
+
+        var record_name = tokens[0];
+        var record_ttl = Integer.parseInt(tokens[1]);
+        var record_class = tokens[2];
+        var record_type = tokens[3];
+        var record_data = tokens[4];
+
+        if(!validName(record_name)) {
+            throw new IllegalArgumentException("bad name " + record_name);
+        }
+        if(!record_class.equals("IN")) {
+            throw new IllegalArgumentException("non-IN record found");
+        }
+        if(record_type.equals("A")) {
+            if(!validIP(record_data)) {
+                throw new IllegalArgumentException("bad address " + record_data);
+            }
+        } else if(record_type.equals("CNAME")) {
+            if(!validName(record_data)) {
+                throw new IllegalArgumentException("bad name " + record_data);
+            }
+        } else {
+            throw new IllegalArgumentException("only A and CNAME records are supported");
+        }
+
+        return new DNSRecord(record_name, record_ttl, record_class, record_type, record_data);
+    }
+
+    private void addRecord(DNSRecord record, DNSKey owner) {
+        var key = record.getKey();
+        owner.setAncestor(key, 0);
+
+        var node = names.get(owner);
+        if(node == null) {
+            node = new Node();
+            names.put(key.nameKey(), node);
+
+            if(common_ancestor == null) {
+                common_ancestor = key.nameKey();
+            }
+            while(!key.isSubdomainOf(common_ancestor)) {
+                owner.setAncestor(common_ancestor, 1);
+                common_ancestor = owner.copy();
+            }
+
+            /* register the ancestors too, stopping at the first one some other name already added */
+            int labels = key.getLabelCount();
+            for(int skip = 1; skip < labels; skip++) {
+                owner.setAncestor(key, skip);
+                if(names.containsKey(owner)) {
+                    break;
                 }
+                names.put(owner.copy(), new Node());
+            }
+        }
+        node.add(record);
+        num_records++;
+    }
 
-                var record_name = tokens[0];
-                var record_ttl = Integer.parseInt(tokens[1]);
-                var record_class = tokens[2];
-                var record_type = tokens[3];
-                var record_data = tokens[4];
+    /* read the file in batches, parsing each batch in parallel and indexing it on this thread */
+    private void parseFile(String zonefile_name) throws DNSZoneException {
+        try (var reader = new BufferedReader(new FileReader(zonefile_name))) {
+            var lines = new ArrayList<String>(BATCH_SIZE);
+            var parsed = new DNSRecord[BATCH_SIZE];
+            var owner = DNSKey.probe();
+            int first_line = 1;
 
-                if(!record_class.equals("IN")) {
-                    System.out.println("Error in zone file: non-IN record found.");
-                    System.exit(0);
+            while(true) {
+                lines.clear();
+                String line;
+                while(lines.size() < BATCH_SIZE && (line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+                if(lines.isEmpty()) {
+                    break;
                 }
 
-                var record = new DNSRecord(record_name, record_ttl, record_class, record_type, record_data);
+                try {
+                    IntStream.range(0, lines.size()).parallel().forEach(i -> parsed[i] = parseLine(lines.get(i)));
+                } catch(IllegalArgumentException e) {
+                    /* NumberFormatException is one too; find the first bad line for the message */
+                    for(int i = 0; i < lines.size(); i++) {
+                        try {
+                            parseLine(lines.get(i));
+                        } catch(IllegalArgumentException bad) {
+                            throw new DNSZoneException(String.format("Error in zone file line %d: %s.", first_line + i, bad.getMessage()));
+                        }
+                    }
+                }
 
-                records.add(record);
+                for(int i = 0; i < lines.size(); i++) {
+                    if(parsed[i] != null) {
+                        addRecord(parsed[i], owner);
+                    }
+                }
+                first_line += lines.size();
             }
-        } catch(NumberFormatException e) {
-            System.out.println("Error in zone file: format incorrect.");
-            System.exit(0);
         } catch(FileNotFoundException e) {
-            System.out.println("Error: zone file not found.");
-            System.exit(0);
+            throw new DNSZoneException("Error: zone file not found.");
+        } catch(IOException e) {
+            throw new DNSZoneException("Error reading zone file: " + e.getMessage());
+        }
+    }
+
+    /* the node for a name-only key, decoded from the image if there is one; null if the name does not exist */
+    private Node findNode(DNSKey name) {
+        if(image == null) {
+            return names.get(name);
+        }
+        int offset = image.find(name);
+        if(offset < 0) {
+            return null;
+        }
+        var node = new Node();
+        for(var record : image.getRecords(offset)) {
+            node.add(record);
+        }
+        return node;
+    }
+
+    private boolean hasName(DNSKey name) {
+        if(image == null) {
+            return names.containsKey(name);
+        }
+        return image.find(name) >= 0;
+    }
+
+    /* the answer from one node, with the owner rewritten to the query name for a wildcard match */
+    private Answer answerFrom(Node node, DNSKey key, String synth_owner, int depth) {
+        var answer = node.get(key.getType());
+        if(answer != null) {
+            if(synth_owner == null) {
+                return answer;
+            }
+            return new Answer(FOUND, synthesize(answer.records, synth_owner));
+        }
+
+        /* a CNAME answers every type; follow it while it stays inside the zone */
+        var cname = node.get(5);
+        if(cname == null || key.getType() == 5) {
+            return NODATA_ANSWER;
         }
+        var records = synthesize(cname.records, synth_owner);
+        if(depth < MAX_CNAME_CHAIN) {
+            var target = DNSKey.of(records.get(0).getData(), key.getType(), key.getRClass());
+            records.addAll(lookup(target, depth + 1).getRecords());
+        }
+        return new Answer(FOUND, records);
+    }
+
+    /* a fresh copy of an RRset, with every owner replaced if synth_owner is set */
+    private static ArrayList<DNSRecord> synthesize(ArrayList<DNSRecord> rrset, String synth_owner) {
+        if(synth_owner == null) {
+            return new ArrayList<DNSRecord>(rrset);
+        }
+        var records = new ArrayList<DNSRecord>(rrset.size());
+        for(var record : rrset) {
+            records.add(new DNSRecord(synth_owner, record.getTTL(), record.getClassNum(), record.getTypeNum(), record.getData()));
+        }
+        return records;
     }
 
-    public ArrayList<DNSRecord> getRecords(String name, String type, String rclass) {
-        var matches = new ArrayList<DNSRecord>();
+    private Answer lookup(DNSKey key, int depth) {
+        if(key.getRClass() != 1) {
+            return NXDOMAIN_ANSWER;
+        }
+
+        /* nested CNAME lookups reuse these, but only once the caller is done with them */
+        var scratch = probes.get();
+        var name = scratch[0];
+        name.setAncestor(key, 0);
+
+        if(key.getType() == 6) {
+            var soa = apexes.get(name);
+            if(soa != null) {
+                return soa;
+            }
+        }
 
-        for (var record : records) {
-            if(record.getName().equals(name) &&
-               record.getClassStr().equals(rclass) &&
-               record.getTypeStr().equals(type)) {
+        var node = findNode(name);
+        if(node != null) {
+            return answerFrom(node, key, null, depth);
+        }
+        if(apexes.containsKey(name)) {
+            return NODATA_ANSWER;
+        }
 
-                matches.add(record);
+        /* find the closest encloser, then look for a wildcard right below it (RFC 4592) */
+        int labels = key.getLabelCount();
+        for(int skip = 1; skip < labels; skip++) {
+            name.setAncestor(key, skip);
+            if(hasName(name)) {
+                var wildcard = scratch[1];
+                wildcard.setWildcard(name);
+                var source = findNode(wildcard);
+                if(source != null) {
+                    return answerFrom(source, key, key.getName(), depth);
+                }
+                break;
             }
         }
+        return NXDOMAIN_ANSWER;
+    }
+
+    /* key may be a probe; costs one hash probe per label of the name at most */
+    public Answer lookup(DNSKey key) {
+        return lookup(key, 0);
+    }
+
+    /* key may be a probe; the returned list is shared and must not be modified */
+    public ArrayList<DNSRecord> getRecords(DNSKey key) {
+        return lookup(key).getRecords();
+    }
 
-        return matches;
+    /*
+     * The SOA of the apex at or above key's name, or null if the name is not ours.
+     * Only ancestors with as many labels as some apex are probed, so this is one
+     * hash probe per label at most and usually exactly one.
+     */
+    public DNSRecord findApex(DNSKey key) {
+        if(apexes.isEmpty() || key.getRClass() != 1) {
+            return null;
+        }
+        var name = probes.get()[0];
+        int labels = key.getLabelCount();
+        for(int skip = Math.max(labels - max_apex_labels, 0); skip <= labels - min_apex_labels; skip++) {
+            name.setAncestor(key, skip);
+            var soa = apexes.get(name);
+            if(soa != null) {
+                return soa.records.get(0);
+            }
+        }
+        return null;
+    }
+
+    /* names of the apexes we answer for, for logging */
+    public ArrayList<String> getApexNames() {
+        var apex_names = new ArrayList<String>(apexes.size());
+        for(var apex : apexes.keySet()) {
+            apex_names.add(apex.getName());
+        }
+        return apex_names;
+    }
+
+    public int getRecordCount() {
+        return num_records;
+    }
+
+    /* owner names plus empty non-terminals */
+    public int getNameCount() {
+        if(image != null) {
+            return image.getNameCount();
+        }
+        return names.size();
+    }
+
+    /* compile this zone into an image that later starts can map instead of parsing */
+    public void writeImage(String image_name) throws IOException {
+        if(image != null) {
+            throw new IOException("zone is already a compiled image");
+        }
+        var rrsets = new HashMap<DNSKey,ArrayList<ArrayList<DNSRecord>>>(names.size() * 2);
+        for(var entry : names.entrySet()) {
+            var node = entry.getValue();
+            var sets = new ArrayList<ArrayList<DNSRecord>>(node.rrsets == null ? 0 : node.rrsets.size());
+            if(node.rrsets != null) {
+                for(var answer : node.rrsets) {
+                    sets.add(answer.records);
+                }
+            }
+            rrsets.put(entry.getKey(), sets);
+        }
+        DNSZoneImage.write(image_name, rrsets, num_records, common_ancestor);
     }
 }
@@ -0,0 +1,11 @@
+package dns;
+
+/* a zone file that can't be loaded; the message says where and why */
+public class DNSZoneException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public DNSZoneException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,229 @@
+package dns;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * A zone compiled into a binary image that is mmapped instead of parsed, so
+ * startup is a header check and the zone's data stays in the page cache instead
+ * of the heap. The layout (all integers big-endian) is:
+ *
+ *   header   magic "DNSZ", version, record count, name count, slot count,
+ *            apex node offset (0 if the names share no apex)
+ *   table    slot count x (name hash, node offset), open addressing, offset 0 = empty
+ *   nodes    name length (u8), lower-cased wire name, RRset count (u8), then per
+ *            RRset a record count (u16) and per record its length (u16) and wire RR
+ *
+ * The name hash is DNSKey's hash of a name-only key, so a lookup probes the table
+ * with the hash the question key already carries. Records are decoded into
+ * DNSRecords only when a name is looked up; hot names are then served from the
+ * packet cache without touching the image at all.
+ *
+ * Build one with: java dns.DNSZoneImage zone_file image_file
+ */
+public class DNSZoneImage {
+
+    final private static int MAGIC = 0x444e535a;
+    final private static int VERSION = 2;
+    final private static int HEADER_SIZE = 24;
+    final private static int SLOT_SIZE = 8;
+
+    private MappedByteBuffer buf;
+    private int record_count;
+    private int name_count;
+    private int slot_mask;
+    private int apex_node;
+
+    public DNSZoneImage(String image_name) throws DNSZoneException {
+        try (var channel = FileChannel.open(Path.of(image_name), StandardOpenOption.READ)) {
+            if(channel.size() > Integer.MAX_VALUE) {
+                throw new DNSZoneException("Error: zone image larger than 2 GB.");
+            }
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch(IOException e) {
+            throw new DNSZoneException("Error reading zone image: " + e.getMessage());
+        }
+
+        if(buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC) {
+            throw new DNSZoneException("Error: not a zone image.");
+        }
+        if(buf.getInt(4) != VERSION) {
+            throw new DNSZoneException("Error: zone image version " + buf.getInt(4) + " is not supported, recompile it.");
+        }
+        record_count = buf.getInt(8);
+        name_count = buf.getInt(12);
+        int slots = buf.getInt(16);
+        if(Integer.bitCount(slots) != 1 || HEADER_SIZE + (long)slots * SLOT_SIZE > buf.limit()) {
+            throw new DNSZoneException("Error: zone image is truncated or corrupt.");
+        }
+        slot_mask = slots - 1;
+        apex_node = buf.getInt(20);
+        if(apex_node < 0 || apex_node >= buf.limit()) {
+            throw new DNSZoneException("Error: zone image is truncated or corrupt.");
+        }
+    }
+
+    /* true if the file starts with the image magic, so it should be mapped rather than parsed */
+    public static boolean isImage(String file_name) {
+        try (var file = new RandomAccessFile(file_name, "r")) {
+            return file.length() >= HEADER_SIZE && file.readInt() == MAGIC;
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
+    /* offset of the node for a name-only key, or -1 if the name is not in the zone */
+    public int find(DNSKey name) {
+        int hash = name.hashCode();
+        int slot = hash & slot_mask;
+        while(true) {
+            int entry = HEADER_SIZE + slot * SLOT_SIZE;
+            int node = buf.getInt(entry + 4);
+            if(node == 0) {
+                return -1;
+            }
+            if(buf.getInt(entry) == hash && name.nameEquals(buf, node + 1, buf.get(node) & 0xff)) {
+                return node;
+            }
+            slot = (slot + 1) & slot_mask;
+        }
+    }
+
+    /* decode every record stored under a node found by find(); empty for an empty non-terminal */
+    public ArrayList<DNSRecord> getRecords(int node) {
+        int offset = node + 1 + (buf.get(node) & 0xff);
+        int rrsets = buf.get(offset++) & 0xff;
+        var records = new ArrayList<DNSRecord>();
+        for(int i = 0; i < rrsets; i++) {
+            int count = buf.getShort(offset) & 0xffff;
+            offset += 2;
+            for(int j = 0; j < count; j++) {
+                int length = buf.getShort(offset) & 0xffff;
+                var wire = new byte[length];
+                buf.get(offset + 2, wire);
+                records.add(new DNSRecord(wire));
+                offset += 2 + length;
+            }
+        }
+        return records;
+    }
+
+    /* the apex the image was compiled with, as a name-only key, or null */
+    public DNSKey getApex() {
+        if(apex_node == 0) {
+            return null;
+        }
+        var name = new byte[buf.get(apex_node) & 0xff];
+        buf.get(apex_node + 1, name);
+        return DNSKey.ofWire(name, 0, 0);
+    }
+
+    public int getRecordCount() {
+        return record_count;
+    }
+
+    public int getNameCount() {
+        return name_count;
+    }
+
+    /*
+     * Write an image of names, each mapped to its records grouped by type (empty for
+     * an empty non-terminal), and apex, which must be one of the names or null. The image is written beside the target and renamed over
+     * it, so a server that has the old image mapped never sees it truncated.
+     */
+    static void write(String image_name, HashMap<DNSKey,ArrayList<ArrayList<DNSRecord>>> names, int record_count, DNSKey apex) throws IOException {
+        int slots = Integer.highestOneBit(Math.max(names.size(), 1) * 2 - 1) << 1;
+        var table = new int[slots * 2];
+        long data_start = HEADER_SIZE + (long)slots * SLOT_SIZE;
+
+        int apex_node = 0;
+        var tmp = Path.of(image_name + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile()), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(record_count);
+            out.writeInt(names.size());
+            out.writeInt(slots);
+            out.writeInt(0);
+
+            /* the table comes first in the file but needs the node offsets, so reserve it and fill it in afterwards */
+            out.write(new byte[slots * SLOT_SIZE]);
+
+            var name_bytes = new byte[256];
+            long offset = data_start;
+            for(var entry : names.entrySet()) {
+                if(offset > Integer.MAX_VALUE) {
+                    throw new IOException("zone too large for a single image");
+                }
+                var key = entry.getKey();
+                int slot = key.hashCode() & (slots - 1);
+                while(table[slot * 2 + 1] != 0) {
+                    slot = (slot + 1) & (slots - 1);
+                }
+                table[slot * 2] = key.hashCode();
+                table[slot * 2 + 1] = (int)offset;
+                if(key.equals(apex)) {
+                    apex_node = (int)offset;
+                }
+
+                int name_length = key.copyName(name_bytes, 0);
+                out.writeByte(name_length);
+                out.write(name_bytes, 0, name_length);
+                out.writeByte(entry.getValue().size());
+                offset += 2 + name_length;
+
+                for(var rrset : entry.getValue()) {
+                    out.writeShort(rrset.size());
+                    offset += 2;
+                    for(var record : rrset) {
+                        var wire = record.getWire();
+                        out.writeShort(wire.length);
+                        out.write(wire);
+                        offset += 2 + wire.length;
+                    }
+                }
+            }
+        }
+
+        try (var file = new RandomAccessFile(tmp.toFile(), "rw")) {
+            var table_bytes = ByteBuffer.allocate(slots * SLOT_SIZE);
+            table_bytes.asIntBuffer().put(table);
+            file.seek(20);
+            file.writeInt(apex_node);
+            file.seek(HEADER_SIZE);
+            file.write(table_bytes.array());
+        }
+        Files.move(tmp, Path.of(image_name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static void main(String[] args) {
+        if(args.length != 2) {
+            System.out.println("Usage: java dns.DNSZoneImage zone_file image_file");
+            System.exit(0);
+        }
+
+        try {
+            long start = System.nanoTime();
+            var zone = new DNSZone(args[0]);
+            zone.writeImage(args[1]);
+            System.out.printf("Compiled %d records under %d names into %s in %d ms%n",
+                zone.getRecordCount(), zone.getNameCount(), args[1], (System.nanoTime() - start) / 1000000);
+        } catch(DNSZoneException e) {
+            System.out.println(e.getMessage());
+        } catch(IOException e) {
+            System.out.println("Error writing zone image: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package dns.bench;
+
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import dns.DNSCache;
+import dns.DNSKey;
+import dns.DNSPacketCache;
+import dns.DNSRecord;
+
+/*
+ * Hammers one DNSCache from 1, 2, 4, ... threads with a Zipfian mix of lookups
+ * and inserts, and reports throughput for a single-shard cache (one global lock)
+ * next to the sharded one, and the sharded one again with a DNSPacketCache
+ * attached, since every insert and eviction then invalidates a packet too. The
+ * cache holds half the names, so inserts also exercise admission and eviction.
+ * Whether the shards buy anything can only be seen where the threads get cores
+ * of their own; rows with more threads than cores are marked, and on a single
+ * core all the columns should come out about the same.
+ *
+ * Usage: java dns.bench.CacheBenchmark [names] [insert percent] [max threads] [seconds per run]
+ */
+public class CacheBenchmark {
+
+    /* skew of the name popularity, as in YCSB's Zipfian workloads */
+    final private static double ZIPF_EXPONENT = 0.99;
+
+    /* name indexes drawn from the distribution ahead of time, so the timed loop only reads an array */
+    final private static int SAMPLES = 1 << 20;
+
+    /* index i is drawn with probability proportional to 1 / (i + 1)^ZIPF_EXPONENT */
+    static int[] zipfSamples(int names, long seed) {
+        var cdf = new double[names];
+        double sum = 0;
+        for(int i = 0; i < names; i++) {
+            sum += 1.0 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cdf[i] = sum;
+        }
+
+        var random = new SplittableRandom(seed);
+        var samples = new int[SAMPLES];
+        for(int s = 0; s < SAMPLES; s++) {
+            double u = random.nextDouble() * sum;
+            int lo = 0;
+            int hi = names - 1;
+            while(lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if(cdf[mid] < u) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            /* scatter the popular names over the hash space rather than bunching them at low indexes */
+            samples[s] = (int)((lo * 2654435761L) % names);
+        }
+        return samples;
+    }
+
+    private static double run(DNSCache cache, DNSKey[] keys, ArrayList<ArrayList<DNSRecord>> rrsets,
+                              int insertPercent, int threads, int seconds) throws InterruptedException {
+        var ops = new LongAdder();
+        var stop = new AtomicBoolean();
+        var ready = new CountDownLatch(threads);
+        var go = new CountDownLatch(1);
+        var workers = new Thread[threads];
+
+        for(int t = 0; t < threads; t++) {
+            var samples = zipfSamples(keys.length, t);
+            workers[t] = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                } catch(InterruptedException e) {
+                    return;
+                }
+                long done = 0;
+                int i = 0;
+                while(!stop.get()) {
+                    /* check the clock flag only every few hundred operations */
+                    for(int batch = 0; batch < 256; batch++) {
+                        int name = samples[i];
+                        i = (i + 1) & (SAMPLES - 1);
+                        if((i * 0x9e3779b9 >>> 25) < insertPercent * 128 / 100) {
+                            cache.addEntries(rrsets.get(name));
+                        } else {
+                            cache.returnRecords(keys[name]);
+                        }
+                    }
+                    done += 256;
+                }
+                ops.add(done);
+            });
+            workers[t].start();
+        }
+
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for(var worker : workers) {
+            worker.join();
+        }
+        return ops.sum() / ((System.nanoTime() - start) / 1e9);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int names = 100000;
+        int insertPercent = 10;
+        int maxThreads = Math.max(Runtime.getRuntime().availableProcessors(), 4);
+        int seconds = 2;
+        if(args.length > 0) {
+            names = Integer.parseInt(args[0]);
+        }
+        if(args.length > 1) {
+            insertPercent = Integer.parseInt(args[1]);
+        }
+        if(args.length > 2) {
+            maxThreads = Integer.parseInt(args[2]);
+        }
+        if(args.length > 3) {
+            seconds = Integer.parseInt(args[3]);
+        }
+
+        var keys = new DNSKey[names];
+        var rrsets = new ArrayList<ArrayList<DNSRecord>>(names);
+        for(int i = 0; i < names; i++) {
+            var record = new DNSRecord(String.format("host%d.bench.test", i), 3600, "IN", "A",
+                String.format("10.%d.%d.%d", (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff));
+            keys[i] = record.getKey();
+            var rrset = new ArrayList<DNSRecord>(1);
+            rrset.add(record);
+            rrsets.add(rrset);
+        }
+
+        System.out.printf("%d names, Zipf s=%.2f, %d%% inserts, cache holds %d, %d cores%n",
+            names, ZIPF_EXPONENT, insertPercent, names / 2, Runtime.getRuntime().availableProcessors());
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%-8s %16s %16s %22s%n", "threads", "1 shard ops/s", DNSCache.DEFAULT_SHARDS + " shards ops/s", "+ packet cache ops/s");
+        for(int threads = 1; threads <= maxThreads; threads *= 2) {
+            double[] results = new double[3];
+            int[] shardCounts = { 1, DNSCache.DEFAULT_SHARDS, DNSCache.DEFAULT_SHARDS };
+            for(int r = 0; r < 3; r++) {
+                var cache = new DNSCache(names / 2, 0, 0, shardCounts[r]);
+                if(r == 2) {
+                    cache.setPacketCache(new DNSPacketCache(names / 2));
+                }
+                for(var rrset : rrsets) {
+                    cache.addEntries(rrset);
+                }
+                /* warm up the JIT on this configuration, then measure */
+                run(cache, keys, rrsets, insertPercent, threads, 1);
+                results[r] = run(cache, keys, rrsets, insertPercent, threads, seconds);
+            }
+            System.out.printf("%-8d %16.0f %16.0f %22.0f%s%n", threads, results[0], results[1], results[2],
+                threads > cores ? "  (more threads than cores)" : "");
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package dns.bench;
+
+import java.util.ArrayList;
+
+import dns.DNSCache;
+import dns.DNSRecord;
+
+/*
+ * Measures the heap a cache full of single-record A RRsets really retains, per
+ * entry, next to what the cache estimates for its byte budget, and the share of
+ * that taken by the DNSRecords themselves. Records are rebuilt from wire form,
+ * the way replies from upstream are, so they carry what a real cache holds.
+ *
+ * Usage: java -Xmx2g dns.bench.CacheMemoryBenchmark [entries]
+ */
+public class CacheMemoryBenchmark {
+
+    static long usedHeap() {
+        var rt = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /* an A record as an upstream would send it, with rdata already in wire form */
+    private static DNSRecord record(int i) {
+        var rdata = new byte[] { 10, (byte)(i >> 16), (byte)(i >> 8), (byte)i };
+        return new DNSRecord(String.format("host%d.sub%d.bench.test", i, i % 64), 3600, 1, 1, rdata);
+    }
+
+    public static void main(String[] args) {
+        int entries = 1000000;
+        if(args.length > 0) {
+            entries = Integer.parseInt(args[0]);
+        }
+
+        long before = usedHeap();
+        var records = new DNSRecord[entries];
+        for(int i = 0; i < entries; i++) {
+            records[i] = record(i);
+        }
+        long recordBytes = usedHeap() - before - (16L + 4L * entries);
+        System.out.printf("%d records alone: %d MB, %d bytes/record%n", entries, recordBytes >> 20, recordBytes / entries);
+        records = null;
+
+        before = usedHeap();
+        var cache = new DNSCache();
+        long start = System.nanoTime();
+        for(int i = 0; i < entries; i++) {
+            var rrset = new ArrayList<DNSRecord>(1);
+            rrset.add(record(i));
+            cache.addEntries(rrset);
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        long cacheBytes = usedHeap() - before;
+
+        System.out.printf("Cache of %d entries: %d MB, %d bytes/entry, filled in %d ms%n", cache.size(), cacheBytes >> 20, cacheBytes / entries, millis);
+        System.out.printf("Cache's own estimate: %d MB, %d bytes/entry%n", cache.getEstimatedBytes() >> 20, cache.getEstimatedBytes() / entries);
+    }
+}
@@ -0,0 +1,116 @@
+package dns.bench;
+
+import java.util.ArrayList;
+
+import dns.DNSCache;
+import dns.DNSKey;
+import dns.DNSRecord;
+
+/*
+ * Single-threaded cost of the cache's basic operations as it grows: a lookup
+ * that hits, one that misses, replacing a cached RRset, and inserting new names
+ * into a full cache so every insert goes through admission and eviction. Keys
+ * are visited in a scattered order so larger caches pay for their cache misses.
+ *
+ * Usage: java -Xmx2g dns.bench.CacheSizeBenchmark [size[,size...]] [operations]
+ */
+public class CacheSizeBenchmark {
+
+    private static ArrayList<DNSRecord> rrset(String format, int i) {
+        var rrset = new ArrayList<DNSRecord>(1);
+        rrset.add(new DNSRecord(String.format(format, i, i % 64), 3600, "IN", "A",
+            String.format("10.%d.%d.%d", (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff)));
+        return rrset;
+    }
+
+    /* i-th of n indexes in a fixed pseudo-random order */
+    private static int scatter(int i, int n) {
+        return (int)((i * 2654435761L) % n);
+    }
+
+    private static void report(String label, long start, int operations) {
+        System.out.printf("  %-10s %7.1f ns/op%n", label, (double)(System.nanoTime() - start) / operations);
+    }
+
+    private static void run(int size, int operations) {
+        var cached = new ArrayList<ArrayList<DNSRecord>>(size);
+        var hitKeys = new DNSKey[size];
+        var missKeys = new DNSKey[size];
+        for(int i = 0; i < size; i++) {
+            cached.add(rrset("host%d.sub%d.bench.test", i));
+            hitKeys[i] = cached.get(i).get(0).getKey();
+            missKeys[i] = DNSKey.of(String.format("nohost%d.sub%d.bench.test", i, i % 64), 1, 1);
+        }
+        /* names the full cache hasn't seen, built ahead so record construction isn't timed */
+        int fresh = Math.min(operations, 1000000);
+        var newcomers = new ArrayList<ArrayList<DNSRecord>>(fresh);
+        for(int i = 0; i < fresh; i++) {
+            newcomers.add(rrset("new%d.sub%d.bench.test", i));
+        }
+
+        var cache = new DNSCache(size, 0, 0);
+        long start = System.nanoTime();
+        for(var rrset : cached) {
+            cache.addEntries(rrset);
+        }
+        System.out.printf("%d entries, filled in %d ms%n", cache.size(), (System.nanoTime() - start) / 1000000);
+
+        /* two passes over each case, the first to warm up the JIT */
+        for(int pass = 0; pass < 2; pass++) {
+            boolean timed = pass == 1;
+
+            start = System.nanoTime();
+            int found = 0;
+            for(int i = 0; i < operations; i++) {
+                if(cache.returnRecords(hitKeys[scatter(i, size)]) != null) {
+                    found++;
+                }
+            }
+            if(timed) {
+                report("hit", start, operations);
+            }
+
+            start = System.nanoTime();
+            for(int i = 0; i < operations; i++) {
+                cache.returnRecords(missKeys[scatter(i, size)]);
+            }
+            if(timed) {
+                report("miss", start, operations);
+            }
+
+            start = System.nanoTime();
+            for(int i = 0; i < operations; i++) {
+                cache.addEntries(cached.get(scatter(i, size)));
+            }
+            if(timed) {
+                report("replace", start, operations);
+            }
+
+            start = System.nanoTime();
+            for(int i = 0; i < operations; i++) {
+                cache.addEntries(newcomers.get(i % fresh));
+            }
+            if(timed) {
+                report("insert new", start, operations);
+                if(found < operations) {
+                    System.out.printf("  (%d hits were missing)%n", operations - found);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        var sizes = "1000,100000,1000000";
+        int operations = 1000000;
+        if(args.length > 0) {
+            sizes = args[0];
+        }
+        if(args.length > 1) {
+            operations = Integer.parseInt(args[1]);
+        }
+
+        for(var size : sizes.split(",")) {
+            run(Integer.parseInt(size), operations);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package dns.bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import dns.DNSMessage;
+import dns.DNSMessageView;
+import dns.DNSRecord;
+
+/*
+ * Encodes the same replies with and without name compression and reports the
+ * reply size and the average encode time for each.
+ *
+ * Usage: java dns.bench.CompressionBenchmark [iterations]
+ */
+public class CompressionBenchmark {
+
+    /* a standard query with one question, as a client would send it */
+    static ByteBuffer makeQuery(String name, int type) {
+        var buf = ByteBuffer.allocate(512);
+        buf.putShort((short)0x1234);
+        buf.putShort((short)0x0100);
+        buf.putShort((short)1);
+        buf.putShort((short)0);
+        buf.putShort((short)0);
+        buf.putShort((short)0);
+        for(var label : name.split("\\.")) {
+            buf.put((byte)label.length());
+            buf.put(label.getBytes());
+        }
+        buf.put((byte)0);
+        buf.putShort((short)type);
+        buf.putShort((short)1);
+        buf.flip();
+        return buf;
+    }
+
+    private static void run(String label, String qname, int qtype, ArrayList<DNSRecord> answers, int iterations) {
+        var view = new DNSMessageView();
+        view.wrap(makeQuery(qname, qtype), null);
+
+        long[] sizes = new long[2];
+        double[] nanos = new double[2];
+        boolean[] modes = { false, true };
+        for(int m = 0; m < 2; m++) {
+            DNSMessage.setNameCompression(modes[m]);
+
+            /* warm up before timing */
+            for(int i = 0; i < iterations; i++) {
+                new DNSMessage(view, answers, true);
+            }
+
+            long start = System.nanoTime();
+            int size = 0;
+            for(int i = 0; i < iterations; i++) {
+                size = new DNSMessage(view, answers, true).getDataLength();
+            }
+            nanos[m] = (double)(System.nanoTime() - start) / iterations;
+            sizes[m] = size;
+        }
+        DNSMessage.setNameCompression(true);
+
+        System.out.printf("%-28s %4d -> %4d bytes (%4.1f%% saved), %7.1f -> %7.1f ns/encode%n",
+            label, sizes[0], sizes[1], 100.0 * (sizes[0] - sizes[1]) / sizes[0], nanos[0], nanos[1]);
+    }
+
+    public static void main(String[] args) {
+        int iterations = 1000000;
+        if(args.length > 0) {
+            iterations = Integer.parseInt(args[0]);
+        }
+
+        var single = new ArrayList<DNSRecord>();
+        single.add(new DNSRecord("test1.csci3363.net", 300, 1, 1, "1.2.3.4"));
+
+        var multi = new ArrayList<DNSRecord>();
+        for(int i = 0; i < 8; i++) {
+            multi.add(new DNSRecord("test1.csci3363.net", 300, 1, 1, "1.2.3." + i));
+        }
+
+        var chain = new ArrayList<DNSRecord>();
+        chain.add(new DNSRecord("www.csci3363.net", 300, 1, 5, "edge.cdn.csci3363.net"));
+        chain.add(new DNSRecord("edge.cdn.csci3363.net", 300, 1, 5, "pop1.edge.cdn.csci3363.net"));
+        for(int i = 0; i < 4; i++) {
+            chain.add(new DNSRecord("pop1.edge.cdn.csci3363.net", 300, 1, 1, "10.0.0." + i));
+        }
+
+        System.out.printf("%d encodes per case, uncompressed -> compressed%n", iterations);
+        run("1 A record", "test1.csci3363.net", 1, single, iterations);
+        run("8 A records", "test1.csci3363.net", 1, multi, iterations);
+        run("CNAME chain + 4 A records", "www.csci3363.net", 1, chain, iterations);
+    }
+}
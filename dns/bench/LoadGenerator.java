@@ -0,0 +1,204 @@
+package dns.bench;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import dns.DNSLatencyHistogram;
+
+/*
+ * End-to-end load over loopback UDP. Starts a stub upstream that answers every
+ * query with one short-lived A record, then has a number of clients each keep
+ * one query outstanding against a running server, asking for Zipf-distributed
+ * names so most are cache hits and the rest go through to the stub. Reports
+ * queries a second, replies by rcode, timeouts, the latency distribution and how
+ * many queries reached the stub. Start the server pointed at the stub first:
+ *
+ *   sudo java dns.DNSServer --upstream=127.0.0.1:5300 csci3363.zone
+ *   java dns.bench.LoadGenerator
+ *
+ * Usage: java dns.bench.LoadGenerator [server[:port]] [seconds] [clients] [names] [stub port, 0 for none] [stub TTL]
+ */
+public class LoadGenerator {
+
+    /* milliseconds a client waits for a reply before counting a timeout and moving on */
+    final private static int TIMEOUT = 1000;
+
+    private static InetSocketAddress address(String item, int port) {
+        int colon = item.lastIndexOf(':');
+        if(colon > 0) {
+            port = Integer.parseInt(item.substring(colon + 1));
+            item = item.substring(0, colon);
+        }
+        return new InetSocketAddress(item, port);
+    }
+
+    /*
+     * The stand-in upstream: copies the question and answers it with a single A
+     * record of the given TTL, pointing its name back at the question's. Runs until
+     * the process exits and counts what it answered.
+     */
+    private static void startStub(int port, int ttl, LongAdder answered) throws IOException {
+        var sock = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        var stub = new Thread(() -> {
+            var in = new DatagramPacket(new byte[512], 512);
+            var out = ByteBuffer.allocate(512);
+            while(true) {
+                try {
+                    sock.receive(in);
+                } catch(IOException e) {
+                    return;
+                }
+                var query = in.getData();
+                int end = 12;
+                while(end < in.getLength() && query[end] != 0) {
+                    end += (query[end] & 0xff) + 1;
+                }
+                end += 5;
+                if(in.getLength() < end) {
+                    continue;
+                }
+
+                out.clear();
+                out.put(query, 0, end);
+                out.putShort(2, (short)0x8180);
+                out.putShort(6, (short)1);
+                out.putShort(8, (short)0);
+                out.putShort(10, (short)0);
+                out.putShort((short)0xc00c);
+                out.putShort((short)1);
+                out.putShort((short)1);
+                out.putInt(ttl);
+                out.putShort((short)4);
+                out.putInt(0x0a000000 | (int)(answered.sum() & 0xffffff));
+                try {
+                    sock.send(new DatagramPacket(out.array(), out.position(), in.getSocketAddress()));
+                } catch(IOException e) {
+                    continue;
+                }
+                answered.increment();
+            }
+        });
+        stub.setDaemon(true);
+        stub.start();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        var server = address("127.0.0.1", 53);
+        int seconds = 10;
+        int clients = 4;
+        int names = 10000;
+        int stubPort = 5300;
+        int stubTTL = 5;
+        if(args.length > 0) {
+            server = address(args[0], 53);
+        }
+        if(args.length > 1) {
+            seconds = Integer.parseInt(args[1]);
+        }
+        if(args.length > 2) {
+            clients = Integer.parseInt(args[2]);
+        }
+        if(args.length > 3) {
+            names = Integer.parseInt(args[3]);
+        }
+        if(args.length > 4) {
+            stubPort = Integer.parseInt(args[4]);
+        }
+        if(args.length > 5) {
+            stubTTL = Integer.parseInt(args[5]);
+        }
+
+        var upstreamQueries = new LongAdder();
+        if(stubPort > 0) {
+            startStub(stubPort, stubTTL, upstreamQueries);
+            System.out.printf("Stub upstream on 127.0.0.1:%d answering with TTL %d%n", stubPort, stubTTL);
+        }
+
+        /* queries are built ahead of time, so the timed loop only patches in an ID */
+        var queries = new byte[names][];
+        for(int i = 0; i < names; i++) {
+            var query = CompressionBenchmark.makeQuery(String.format("host%d.load.test", i), 1);
+            queries[i] = new byte[query.remaining()];
+            query.get(queries[i]);
+        }
+
+        var latency = new DNSLatencyHistogram(0);
+        var rcodes = new AtomicLongArray(16);
+        var timeouts = new LongAdder();
+        var stop = new AtomicBoolean();
+        var workers = new Thread[clients];
+        final var target = server;
+
+        System.out.printf("%d clients, %d Zipf s=0.99 names, %d seconds against %s%n", clients, names, seconds, target);
+        for(int c = 0; c < clients; c++) {
+            var samples = CacheBenchmark.zipfSamples(names, c);
+            var sock = new DatagramSocket();
+            sock.connect(target);
+            sock.setSoTimeout(TIMEOUT);
+            workers[c] = new Thread(() -> {
+                var reply = new DatagramPacket(new byte[4096], 4096);
+                int i = 0;
+                int id = 0;
+                while(!stop.get()) {
+                    var query = queries[samples[i]].clone();
+                    i = (i + 1) & (samples.length - 1);
+                    id = (id + 1) & 0xffff;
+                    query[0] = (byte)(id >> 8);
+                    query[1] = (byte)id;
+
+                    long start = System.nanoTime();
+                    try {
+                        sock.send(new DatagramPacket(query, query.length));
+                        /* a late reply to an earlier query is skipped, not taken for this one */
+                        do {
+                            sock.receive(reply);
+                        } while(reply.getLength() < 12 || ((reply.getData()[0] & 0xff) << 8 | (reply.getData()[1] & 0xff)) != id);
+                    } catch(SocketTimeoutException e) {
+                        timeouts.increment();
+                        continue;
+                    } catch(IOException e) {
+                        System.out.println("Client error: " + e.getMessage());
+                        return;
+                    }
+                    latency.record((System.nanoTime() - start) / 1000);
+                    rcodes.incrementAndGet(reply.getData()[3] & 0xf);
+                }
+                sock.close();
+            });
+        }
+
+        long start = System.nanoTime();
+        for(var worker : workers) {
+            worker.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for(var worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long replies = latency.getCount();
+        System.out.printf("%d replies in %.1f s: %.0f queries/s, %d timeouts%n", replies, elapsed, replies / elapsed, timeouts.sum());
+        var byRcode = new StringBuilder();
+        for(int r = 0; r < 16; r++) {
+            if(rcodes.get(r) > 0) {
+                byRcode.append(String.format(" rcode %d: %d", r, rcodes.get(r)));
+            }
+        }
+        System.out.println("Replies by" + byRcode);
+        System.out.printf("Latency p50=%dus p90=%dus p99=%dus p99.9=%dus%n",
+            latency.percentile(0.5), latency.percentile(0.9), latency.percentile(0.99), latency.percentile(0.999));
+        if(stubPort > 0 && replies > 0) {
+            System.out.printf("Upstream saw %d queries, %.1f%% of replies%n", upstreamQueries.sum(), 100.0 * upstreamQueries.sum() / replies);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package dns.bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import dns.DNSMessage;
+import dns.DNSMessageView;
+import dns.DNSRecord;
+
+/*
+ * Times parsing the packets a server really sees, a client query and the
+ * compressed replies upstreams send back (an answer, a CNAME chain, a TLD
+ * referral with glue and an NXDOMAIN), and encoding the replies we send. Queries are parsed both
+ * by DNSMessageView, as the fast path does, and into a full DNSMessage.
+ *
+ * Usage: java dns.bench.MessageBenchmark [iterations]
+ */
+public class MessageBenchmark {
+
+    /* builds a packet the way upstream servers do, pointing every repeated name suffix back at its first occurrence */
+    static class PacketWriter {
+        private ByteBuffer buf = ByteBuffer.allocate(4096);
+        private HashMap<String,Integer> offsets = new HashMap<>();
+
+        PacketWriter(int flags, int questions, int answers, int authorities, int additionals) {
+            buf.putShort((short)0x1234);
+            buf.putShort((short)flags);
+            buf.putShort((short)questions);
+            buf.putShort((short)answers);
+            buf.putShort((short)authorities);
+            buf.putShort((short)additionals);
+        }
+
+        void name(String name) {
+            while(!name.isEmpty()) {
+                var offset = offsets.get(name);
+                if(offset != null) {
+                    buf.putShort((short)(0xc000 | offset));
+                    return;
+                }
+                offsets.put(name, buf.position());
+                int dot = name.indexOf('.');
+                var label = dot < 0 ? name : name.substring(0, dot);
+                buf.put((byte)label.length());
+                buf.put(label.getBytes());
+                name = dot < 0 ? "" : name.substring(dot + 1);
+            }
+            buf.put((byte)0);
+        }
+
+        void question(String name, int type) {
+            name(name);
+            buf.putShort((short)type);
+            buf.putShort((short)1);
+        }
+
+        private void header(String name, int type, int ttl) {
+            name(name);
+            buf.putShort((short)type);
+            buf.putShort((short)1);
+            buf.putInt(ttl);
+        }
+
+        void a(String name, int ttl, int a, int b, int c, int d) {
+            header(name, 1, ttl);
+            buf.putShort((short)4);
+            buf.put(new byte[] { (byte)a, (byte)b, (byte)c, (byte)d });
+        }
+
+        /* any rdata as given, including the malformed kind a test wants to send */
+        void record(String name, int type, int ttl, byte[] rdata) {
+            header(name, type, ttl);
+            buf.putShort((short)rdata.length);
+            buf.put(rdata);
+        }
+
+        /* NS and CNAME rdata is a name, which may itself be compressed */
+        void nameRecord(String name, int type, int ttl, String target) {
+            header(name, type, ttl);
+            int length_at = buf.position();
+            buf.putShort((short)0);
+            name(target);
+            buf.putShort(length_at, (short)(buf.position() - length_at - 2));
+        }
+
+        void soa(String name, int ttl, String mname, String rname, int minimum) {
+            header(name, 6, ttl);
+            int length_at = buf.position();
+            buf.putShort((short)0);
+            name(mname);
+            name(rname);
+            buf.putInt(2024010101);
+            buf.putInt(7200);
+            buf.putInt(3600);
+            buf.putInt(1209600);
+            buf.putInt(minimum);
+            buf.putShort(length_at, (short)(buf.position() - length_at - 2));
+        }
+
+        ByteBuffer finish() {
+            buf.flip();
+            return buf;
+        }
+    }
+
+    static ByteBuffer answerReply() {
+        var w = new PacketWriter(0x8180, 1, 2, 0, 0);
+        w.question("www.example.com", 1);
+        w.a("www.example.com", 300, 93, 184, 216, 34);
+        w.a("www.example.com", 300, 93, 184, 216, 35);
+        return w.finish();
+    }
+
+    static ByteBuffer chainReply() {
+        var w = new PacketWriter(0x8180, 1, 6, 0, 0);
+        w.question("www.shop.example.com", 1);
+        w.nameRecord("www.shop.example.com", 5, 300, "shop.example.com.cdn.example.net");
+        w.nameRecord("shop.example.com.cdn.example.net", 5, 60, "edge7.pop3.cdn.example.net");
+        for(int i = 0; i < 4; i++) {
+            w.a("edge7.pop3.cdn.example.net", 20, 198, 51, 100, i);
+        }
+        return w.finish();
+    }
+
+    static ByteBuffer negativeReply() {
+        var w = new PacketWriter(0x8183, 1, 0, 1, 0);
+        w.question("nohost.example.com", 1);
+        w.soa("example.com", 3600, "ns1.example.com", "hostmaster.example.com", 300);
+        return w.finish();
+    }
+
+    /* what a .com server answers a resolver: no answer, thirteen NS records and their glue */
+    static ByteBuffer referralReply() {
+        var w = new PacketWriter(0x8000, 1, 0, 13, 13);
+        w.question("www.example.com", 1);
+        for(int i = 0; i < 13; i++) {
+            w.nameRecord("com", 2, 172800, (char)('a' + i) + ".gtld-servers.net");
+        }
+        for(int i = 0; i < 13; i++) {
+            w.a((char)('a' + i) + ".gtld-servers.net", 172800, 192, 5 + i, 6, 30);
+        }
+        return w.finish();
+    }
+
+    private static void parse(String label, ByteBuffer packet, int iterations) {
+        int records = 0;
+        /* warm up before timing */
+        for(int i = 0; i < iterations; i++) {
+            var message = new DNSMessage(packet.duplicate(), null);
+            records = message.getAnswers().size() + message.getAuthorities().size() + message.getAdditionals().size();
+        }
+
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            new DNSMessage(packet.duplicate(), null);
+        }
+        double nanos = (double)(System.nanoTime() - start) / iterations;
+        System.out.printf("parse %-24s %4d bytes, %2d records, %7.1f ns/parse%n", label, packet.remaining(), records, nanos);
+    }
+
+    private static void view(String label, ByteBuffer packet, int iterations) {
+        var view = new DNSMessageView();
+        /* warm up before timing */
+        for(int i = 0; i < iterations; i++) {
+            view.wrap(packet.duplicate(), null);
+            view.getQuestionKey();
+        }
+
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            view.wrap(packet.duplicate(), null);
+            view.getQuestionKey();
+        }
+        double nanos = (double)(System.nanoTime() - start) / iterations;
+        System.out.printf("view  %-24s %4d bytes, %7.1f ns/wrap+key%n", label, packet.remaining(), nanos);
+    }
+
+    private static void encode(String label, String qname, ArrayList<DNSRecord> answers, ArrayList<DNSRecord> authorities, int iterations) {
+        var view = new DNSMessageView();
+        view.wrap(CompressionBenchmark.makeQuery(qname, 1), null);
+
+        int size = 0;
+        /* warm up before timing */
+        for(int i = 0; i < iterations; i++) {
+            size = new DNSMessage(view, answers, authorities, true).getDataLength();
+        }
+
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            new DNSMessage(view, answers, authorities, true);
+        }
+        double nanos = (double)(System.nanoTime() - start) / iterations;
+        System.out.printf("encode %-23s %4d bytes, %7.1f ns/encode%n", label, size, nanos);
+    }
+
+    public static void main(String[] args) {
+        int iterations = 1000000;
+        if(args.length > 0) {
+            iterations = Integer.parseInt(args[0]);
+        }
+
+        System.out.printf("%d iterations per case%n", iterations);
+        var query = CompressionBenchmark.makeQuery("www.example.com", 1);
+        view("query", query, iterations);
+        parse("query", query, iterations);
+        parse("2 A records", answerReply(), iterations);
+        parse("CNAME chain + 4 A", chainReply(), iterations);
+        parse("referral + glue", referralReply(), iterations);
+        parse("NXDOMAIN + SOA", negativeReply(), iterations);
+
+        /* our replies are encoded from the records parsed out of upstream's */
+        var none = new ArrayList<DNSRecord>();
+        encode("2 A records", "www.example.com", new DNSMessage(answerReply(), null).getAnswers(), none, iterations);
+        encode("CNAME chain + 4 A", "www.shop.example.com", new DNSMessage(chainReply(), null).getAnswers(), none, iterations);
+        encode("NXDOMAIN + SOA", "nohost.example.com", none, new DNSMessage(negativeReply(), null).getAuthorities(), iterations);
+    }
+}
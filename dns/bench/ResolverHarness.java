@@ -0,0 +1,278 @@
+package dns.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dns.DNSMessage;
+import dns.DNSMessageView;
+import dns.DNSServer;
+
+/*
+ * Drives recursive resolution end to end over loopback, with no network. Starts
+ * stand-in authoritative servers on 127.0.0.10 to 127.0.0.14, writes a root
+ * hints file naming the first, runs a DNSServer in this process in recursive
+ * mode with --server-port pointed at the stand-ins, then checks its answers: a
+ * referral chain, a CNAME, an NXDOMAIN, a zone whose first nameserver's glue is
+ * not a 4-byte address, a glueless nameserver, and a repeat that the cache has
+ * to answer without asking the root again. Exits non-zero if a check fails.
+ *
+ *   java dns.bench.ResolverHarness
+ *
+ * Usage: java dns.bench.ResolverHarness [server port] [stand-in port] [zone file]
+ */
+public class ResolverHarness {
+
+    final private static int TIMEOUT = 2000;
+    final private static int TRIES = 5;
+
+    /* address, zone origin, then its records as "owner TYPE data"; A data "bad" is five bytes, not an address */
+    final private static String[][] STAND_INS = {
+        { "127.0.0.10", "",
+          "test NS ns1.test", "ns1.test A 127.0.0.11" },
+        { "127.0.0.11", "test",
+          "example.test NS ns1.example.test", "ns1.example.test A 127.0.0.12",
+          "broken.test NS ns1.broken.test", "ns1.broken.test A bad",
+          "broken.test NS ns2.broken.test", "ns2.broken.test A 127.0.0.13",
+          "glueless.test NS ns.example.test" },
+        { "127.0.0.12", "example.test",
+          "www.example.test A 10.0.0.1", "alias.example.test CNAME www.example.test",
+          "ns1.example.test A 127.0.0.12", "ns.example.test A 127.0.0.14" },
+        { "127.0.0.13", "broken.test",
+          "www.broken.test A 10.0.0.2" },
+        { "127.0.0.14", "glueless.test",
+          "www.glueless.test A 10.0.0.3" },
+    };
+
+    /* question, expected rcode, and an address the answer must hold, or null */
+    final private static String[][] CHECKS = {
+        { "www.example.test", "0", "10.0.0.1" },
+        { "alias.example.test", "0", "10.0.0.1" },
+        { "nohost.example.test", "3", null },
+        { "www.broken.test", "0", "10.0.0.2" },
+        { "www.glueless.test", "0", "10.0.0.3" },
+    };
+
+    private static String typeName(int type) {
+        return type == 1 ? "A" : type == 2 ? "NS" : type == 5 ? "CNAME" : Integer.toString(type);
+    }
+
+    private static boolean under(String name, String zone) {
+        return zone.isEmpty() || name.equals(zone) || name.endsWith("." + zone);
+    }
+
+    private static void write(MessageBenchmark.PacketWriter w, String[] record) {
+        if(record[1].equals("A")) {
+            if(record[2].equals("bad")) {
+                w.record(record[0], 1, 3600, new byte[5]);
+                return;
+            }
+            var octets = record[2].split("\\.");
+            w.a(record[0], 3600, Integer.parseInt(octets[0]), Integer.parseInt(octets[1]), Integer.parseInt(octets[2]), Integer.parseInt(octets[3]));
+        } else {
+            w.nameRecord(record[0], record[1].equals("NS") ? 2 : 5, 3600, record[2]);
+        }
+    }
+
+    /*
+     * What an authoritative server for origin answers: a referral with glue for a
+     * name below one of its delegations, otherwise the records, a CNAME, or
+     * NODATA / NXDOMAIN with the zone's SOA.
+     */
+    private static ByteBuffer answer(String origin, ArrayList<String[]> records, String name, int type) {
+        if(!under(name, origin)) {
+            var w = new MessageBenchmark.PacketWriter(0x8005, 1, 0, 0, 0);
+            w.question(name, type);
+            return w.finish();
+        }
+
+        String cut = null;
+        for(var record : records) {
+            if(record[1].equals("NS") && under(name, record[0]) && (cut == null || record[0].length() > cut.length())) {
+                cut = record[0];
+            }
+        }
+        if(cut != null) {
+            var ns = new ArrayList<String[]>();
+            var glue = new ArrayList<String[]>();
+            for(var record : records) {
+                if(record[1].equals("NS") && record[0].equals(cut)) {
+                    ns.add(record);
+                    for(var address : records) {
+                        if(address[1].equals("A") && address[0].equals(record[2])) {
+                            glue.add(address);
+                        }
+                    }
+                }
+            }
+            var w = new MessageBenchmark.PacketWriter(0x8000, 1, 0, ns.size(), glue.size());
+            w.question(name, type);
+            ns.forEach(record -> write(w, record));
+            glue.forEach(record -> write(w, record));
+            return w.finish();
+        }
+
+        var answers = new ArrayList<String[]>();
+        boolean exists = false;
+        for(var record : records) {
+            if(under(record[0], name)) {
+                exists = true;
+            }
+            if(record[0].equals(name) && (record[1].equals(typeName(type)) || record[1].equals("CNAME"))) {
+                answers.add(record);
+            }
+        }
+        int rcode = answers.isEmpty() && !exists ? 3 : 0;
+        var w = new MessageBenchmark.PacketWriter(0x8400 | rcode, 1, answers.size(), answers.isEmpty() ? 1 : 0, 0);
+        w.question(name, type);
+        answers.forEach(record -> write(w, record));
+        if(answers.isEmpty()) {
+            w.soa(origin, 3600, "ns1." + origin, "hostmaster." + origin, 60);
+        }
+        return w.finish();
+    }
+
+    private static void startStandIn(String[] spec, int port, AtomicInteger queries) throws IOException {
+        var origin = spec[1];
+        var records = new ArrayList<String[]>();
+        for(int i = 2; i < spec.length; i++) {
+            records.add(spec[i].split(" "));
+        }
+
+        var sock = new DatagramSocket(new InetSocketAddress(spec[0], port));
+        var standIn = new Thread(() -> {
+            var in = new DatagramPacket(new byte[512], 512);
+            var view = new DNSMessageView();
+            while(true) {
+                try {
+                    sock.receive(in);
+                    if(!view.wrap(ByteBuffer.wrap(in.getData(), 0, in.getLength()), null) || view.getQuestionKey() == null) {
+                        continue;
+                    }
+                    queries.incrementAndGet();
+                    var reply = answer(origin, records, view.getQuestionKey().getName(), view.getQuestionType());
+                    reply.putShort(0, (short)view.getID());
+                    sock.send(new DatagramPacket(reply.array(), reply.limit(), in.getSocketAddress()));
+                } catch(IOException e) {
+                    return;
+                }
+            }
+        });
+        standIn.setDaemon(true);
+        standIn.start();
+    }
+
+    /*
+     * Ask the server, re-sending on a timeout since it may still be starting up;
+     * null if it never answers. The socket is left unconnected so an ICMP error
+     * from a server not yet bound is just a lost packet.
+     */
+    private static DNSMessage ask(DatagramSocket sock, InetSocketAddress server, String name) throws IOException {
+        var query = CompressionBenchmark.makeQuery(name, 1);
+        var reply = new DatagramPacket(new byte[512], 512);
+        for(int i = 0; i < TRIES; i++) {
+            sock.send(new DatagramPacket(query.array(), query.limit(), server));
+            try {
+                sock.receive(reply);
+                return new DNSMessage(ByteBuffer.wrap(reply.getData(), 0, reply.getLength()), null);
+            } catch(SocketTimeoutException e) {
+                continue;
+            }
+        }
+        return null;
+    }
+
+    private static boolean check(DNSMessage reply, int rcode, String address) {
+        if(reply == null || reply.getRcode() != rcode) {
+            return false;
+        }
+        if(address == null) {
+            return true;
+        }
+        for(var record : reply.getAnswers()) {
+            if(record.getTypeNum() == 1 && record.getData().equals(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String describe(DNSMessage reply) {
+        if(reply == null) {
+            return "no reply";
+        }
+        var answers = new StringBuilder();
+        for(var record : reply.getAnswers()) {
+            answers.append(" ").append(record.getData());
+        }
+        return "rcode " + reply.getRcode() + ", answers:" + answers;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int serverPort = 5053;
+        int standInPort = 5353;
+        var zoneFile = "csci3363.zone";
+        if(args.length > 0) {
+            serverPort = Integer.parseInt(args[0]);
+        }
+        if(args.length > 1) {
+            standInPort = Integer.parseInt(args[1]);
+        }
+        if(args.length > 2) {
+            zoneFile = args[2];
+        }
+
+        var counts = new AtomicInteger[STAND_INS.length];
+        for(int i = 0; i < STAND_INS.length; i++) {
+            counts[i] = new AtomicInteger();
+            startStandIn(STAND_INS[i], standInPort, counts[i]);
+        }
+        var hints = File.createTempFile("root", ".hints");
+        hints.deleteOnExit();
+        try (var writer = new FileWriter(hints)) {
+            writer.write(".  3600000  NS  a.root.test.\n");
+            writer.write("a.root.test.  3600000  A  " + STAND_INS[0][0] + "\n");
+        }
+
+        var serverArgs = new String[] { "--port=" + serverPort, "--resolve=recursive", "--root-hints=" + hints.getPath(),
+            "--server-port=" + standInPort, zoneFile };
+        var server = new Thread(() -> DNSServer.main(serverArgs));
+        server.setDaemon(true);
+        server.start();
+
+        var target = new InetSocketAddress(InetAddress.getLoopbackAddress(), serverPort);
+        var sock = new DatagramSocket();
+        sock.setSoTimeout(TIMEOUT);
+
+        int failures = 0;
+        for(var check : CHECKS) {
+            var reply = ask(sock, target, check[0]);
+            boolean passed = check(reply, Integer.parseInt(check[1]), check[2]);
+            System.out.printf("%s %s: %s%n", passed ? "PASS" : "FAIL", check[0], describe(reply));
+            if(!passed) {
+                failures++;
+            }
+        }
+
+        /* everything under example.test is cached by now, so the root must not hear about it again */
+        int rootQueries = counts[0].get();
+        var reply = ask(sock, target, CHECKS[0][0]);
+        boolean passed = check(reply, 0, CHECKS[0][2]) && counts[0].get() == rootQueries;
+        System.out.printf("%s %s again, from the cache: %s, root asked %d more time(s)%n",
+            passed ? "PASS" : "FAIL", CHECKS[0][0], describe(reply), counts[0].get() - rootQueries);
+        if(!passed) {
+            failures++;
+        }
+
+        System.out.printf("%d of %d checks failed%n", failures, CHECKS.length + 1);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,123 @@
+package dns.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import dns.DNSKey;
+import dns.DNSZone;
+import dns.DNSZoneException;
+
+/*
+ * Writes a synthetic zone, loads it and reports load time, heap retained by the
+ * zone and lookup cost for hits, NODATA, NXDOMAIN and wildcard answers. Then does
+ * the same for the zone compiled into an image and mapped (see DNSZoneImage).
+ * Runs at 1K, 100K and 1M records unless given other sizes.
+ *
+ * Usage: java dns.bench.ZoneBenchmark [records[,records...]] [lookups]
+ */
+public class ZoneBenchmark {
+
+    /* A records spread over hosts in a few subdomains, plus a wildcard and a CNAME per thousand hosts */
+    static File writeZone(int records) throws IOException {
+        var file = File.createTempFile("bench", ".zone");
+        file.deleteOnExit();
+        try (var out = new PrintWriter(file)) {
+            out.println("*.wild.bench.test 300 IN A 10.255.255.255");
+            for(int i = 0; i < records; i++) {
+                if(i % 1000 == 999) {
+                    out.printf("alias%d.sub%d.bench.test 300 IN CNAME host%d.sub%d.bench.test%n", i, i % 64, i - 1, (i - 1) % 64);
+                } else {
+                    out.printf("host%d.sub%d.bench.test 300 IN A 10.%d.%d.%d%n", i, i % 64, (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff);
+                }
+            }
+        }
+        return file;
+    }
+
+    static long usedHeap() {
+        var rt = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static void time(String label, DNSZone zone, DNSKey[] keys, int lookups, int expected) {
+        /* warm up before timing */
+        for(int i = 0; i < lookups; i++) {
+            zone.lookup(keys[i % keys.length]);
+        }
+
+        int unexpected = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < lookups; i++) {
+            if(zone.lookup(keys[i % keys.length]).getStatus() != expected) {
+                unexpected++;
+            }
+        }
+        double nanos = (double)(System.nanoTime() - start) / lookups;
+        System.out.printf("%-10s %7.1f ns/lookup%s%n", label, nanos, unexpected == 0 ? "" : String.format(" (%d unexpected)", unexpected));
+    }
+
+    private static DNSKey[] keys(String format, int count, int records, int type) {
+        var keys = new DNSKey[count];
+        for(int i = 0; i < count; i++) {
+            int n = (int)((i * 2654435761L) % records);
+            if(n % 1000 == 999) {
+                n--;
+            }
+            keys[i] = DNSKey.of(String.format(format, n, n % 64), type, 1);
+        }
+        return keys;
+    }
+
+    public static void main(String[] args) throws IOException, DNSZoneException {
+        var sizes = "1000,100000,1000000";
+        int lookups = 2000000;
+        if(args.length > 0) {
+            sizes = args[0];
+        }
+        if(args.length > 1) {
+            lookups = Integer.parseInt(args[1]);
+        }
+
+        for(var size : sizes.split(",")) {
+            run(Integer.parseInt(size), lookups);
+        }
+    }
+
+    private static void run(int records, int lookups) throws IOException, DNSZoneException {
+        var file = writeZone(records);
+        System.out.printf("%nSynthetic zone: %d records, %d MB of text%n", records + 1, file.length() >> 20);
+
+        var zone = load(file.getPath(), records, lookups);
+
+        var image = File.createTempFile("bench", ".image");
+        image.deleteOnExit();
+        long start = System.nanoTime();
+        zone.writeImage(image.getPath());
+        System.out.printf("%nCompiled a %d MB image in %d ms%n", image.length() >> 20, (System.nanoTime() - start) / 1000000);
+        zone = null;
+
+        load(image.getPath(), records, lookups);
+    }
+
+    private static DNSZone load(String file_name, int records, int lookups) throws DNSZoneException {
+        long before = usedHeap();
+        long start = System.nanoTime();
+        var zone = new DNSZone(file_name);
+        long millis = (System.nanoTime() - start) / 1000000;
+        long retained = usedHeap() - before;
+
+        System.out.printf("Loaded %d records under %d names in %d ms%n", zone.getRecordCount(), zone.getNameCount(), millis);
+        System.out.printf("Heap retained by the zone: %d MB (%d bytes/record)%n", retained >> 20, retained / zone.getRecordCount());
+
+        int distinct = Math.min(records, 100000);
+        time("hit", zone, keys("host%d.sub%d.bench.test", distinct, records, 1), lookups, DNSZone.FOUND);
+        time("NODATA", zone, keys("host%d.sub%d.bench.test", distinct, records, 28), lookups, DNSZone.NODATA);
+        time("NXDOMAIN", zone, keys("nohost%d.sub%d.bench.test", distinct, records, 1), lookups, DNSZone.NXDOMAIN);
+        time("wildcard", zone, keys("x%d.y%d.wild.bench.test", distinct, records, 1), lookups, DNSZone.FOUND);
+        return zone;
+    }
+}